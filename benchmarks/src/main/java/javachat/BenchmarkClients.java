@@ -0,0 +1,38 @@
+package javachat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Connects handlers to the server's shared state the way the accept loops do,
+// but over in-memory connections.
+final class BenchmarkClients {
+    private BenchmarkClients() {
+    }
+
+    static MultiCastServer.ClientHandler connect(String address, boolean binary) {
+        return new MultiCastServer.ClientHandler(new InMemoryConnection(address, binary));
+    }
+
+    static String uniqueRoomName(String prefix) {
+        return prefix + "-" + System.nanoTime();
+    }
+
+    static String userName(String roomName, int index) {
+        return roomName + "-user-" + index;
+    }
+
+    // Creates the room and joins size users to it, named by userName; the
+    // first one is the creator.
+    static List<MultiCastServer.ClientHandler> fillRoom(String roomName, int size, boolean binary) {
+        List<MultiCastServer.ClientHandler> members = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            MultiCastServer.ClientHandler member = connect("10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), binary);
+            if (i == 0) {
+                member.onFrame(Frame.of(Protocol.ClientOp.CREATE_ROOM, roomName, userName(roomName, 0)));
+            }
+            member.onFrame(Frame.of(Protocol.ClientOp.JOIN_ROOM, roomName, userName(roomName, i)));
+            members.add(member);
+        }
+        return members;
+    }
+}
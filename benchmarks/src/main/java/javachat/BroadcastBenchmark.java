@@ -0,0 +1,38 @@
+package javachat;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One chat line fanned out to every member of a room: sequencing, frame
+// encoding and a write per recipient.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dmulticast.logLevel=off", "-Dmulticast.memberUpdateDelayMs=0",
+        "-Dmulticast.connectionRate=0", "-Dmulticast.userRate=0", "-Dmulticast.roomRate=0"})
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    public int roomSize;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private MultiCastServer.ClientHandler sender;
+    private Frame message;
+
+    @Setup
+    public void fillRoom() {
+        List<MultiCastServer.ClientHandler> members =
+                BenchmarkClients.fillRoom(BenchmarkClients.uniqueRoomName("broadcast"), roomSize, format.equals(Protocol.BINARY));
+        sender = members.get(0);
+        message = Frame.of(Protocol.ClientOp.SEND_MESSAGE, "All", "Hello everyone, this is an ordinary chat line");
+    }
+
+    @Benchmark
+    public void broadcastMessageToRoom() {
+        sender.onFrame(message);
+    }
+}
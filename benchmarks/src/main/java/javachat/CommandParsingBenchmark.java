@@ -0,0 +1,63 @@
+package javachat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Decoding a burst of client requests, as the read loop of ClientHandler and
+// the NIO event loops do, in each wire format.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private static final int REQUESTS = 64;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private ByteBuffer input;
+
+    @Setup
+    public void encodeRequests() {
+        boolean binary = format.equals(Protocol.BINARY);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // The decoder starts in text mode; a binary connection negotiates first.
+        if (binary) {
+            write(bytes, Frame.of(Protocol.ClientOp.PROTOCOL, Protocol.BINARY), false);
+        }
+        Frame[] requests = {
+                Frame.of(Protocol.ClientOp.SEND_MESSAGE, "All", "Hello everyone, this is an ordinary chat line"),
+                Frame.of(Protocol.ClientOp.SEND_MESSAGE, "alice", "a private note"),
+                Frame.of(Protocol.ClientOp.JOIN_ROOM, "lobby", "bob"),
+                Frame.of(Protocol.ClientOp.GET_ROOMS, "since", 1234),
+                Frame.of(Protocol.ClientOp.RESEND, 7, 1000, 1010),
+                Frame.of(Protocol.ClientOp.LEAVE_ROOM),
+                Frame.of(Protocol.ClientOp.SEND_MESSAGE, "All", "ok"),
+                Frame.of(Protocol.ClientOp.SEND_MESSAGE, "All", "Xin chào mọi người"),
+        };
+        for (int i = 0; i < REQUESTS; i++) {
+            write(bytes, requests[i % requests.length], binary);
+        }
+        input = ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static void write(ByteArrayOutputStream bytes, Frame frame, boolean binary) {
+        ByteBuffer view = frame.view(binary);
+        byte[] data = new byte[view.remaining()];
+        view.get(data);
+        bytes.write(data, 0, data.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void decode(Blackhole blackhole) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.CLIENT_OPS);
+        decoder.feed(input.duplicate(), blackhole::consume);
+    }
+}
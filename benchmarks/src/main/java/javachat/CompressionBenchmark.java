@@ -0,0 +1,102 @@
+package javachat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One broadcast written to every member's stream and flushed, as a writer's
+// drain would: uncompressed, through each connection's own deflater, or as a
+// shared frame deflated once and spliced into every stream (chat lines are
+// shorter than DeflateOutput.SHARED_MIN_BYTES, so those still take the
+// per-connection path). Time is the CPU side; the plainBytes and wireBytes
+// counters are the bandwidth side.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"10", "100", "1000"})
+    public int roomSize;
+
+    @Param({"none", "connection", "shared"})
+    public String compression;
+
+    // An ordinary chat line, or a member update naming 100 users.
+    @Param({"chat", "members"})
+    public String payload;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long plainBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            plainBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    private final ByteBuffer socketBuffer = ByteBuffer.allocateDirect(Protocol.MAX_FRAME_LENGTH);
+    private DeflateOutput[] outputs;
+    private List<Object[]> messages;
+    private int next;
+
+    @Setup
+    public void openStreams() {
+        outputs = new DeflateOutput[roomSize];
+        if (!compression.equals("none")) {
+            for (int i = 0; i < roomSize; i++) {
+                outputs[i] = new DeflateOutput(null);
+            }
+        }
+        messages = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            if (payload.equals("chat")) {
+                messages.add(new Object[] {"[10.0.0." + i + "] - " + BenchmarkClients.userName("lobby", i)
+                        + ": message " + i + ", just an ordinary line of chat in a busy room"});
+            } else {
+                List<String> joined = new ArrayList<>();
+                for (int j = 0; j < 100; j++) {
+                    joined.add(BenchmarkClients.userName("lobby", i * 100 + j));
+                }
+                messages.add(new Object[] {joined, List.of()});
+            }
+        }
+    }
+
+    @TearDown
+    public void closeStreams() {
+        for (DeflateOutput output : outputs) {
+            if (output != null) {
+                output.end();
+            }
+        }
+    }
+
+    @Benchmark
+    public void broadcast(Bytes bytes) {
+        Protocol.Op op = payload.equals("chat") ? Protocol.ServerOp.MESSAGE : Protocol.ServerOp.USER_LIST_DELTA;
+        Object[] fields = messages.get(next++ & 63);
+        // A fresh frame each time, so nothing is encoded or compressed ahead.
+        Frame frame = compression.equals("shared") ? Frame.shared(op, fields) : Frame.of(op, fields);
+        for (DeflateOutput output : outputs) {
+            ByteBuffer wire;
+            if (output == null) {
+                wire = frame.view(false);
+            } else {
+                output.write(frame, false);
+                wire = output.drain(true);
+            }
+            bytes.plainBytes += frame.length(false);
+            bytes.wireBytes += wire.remaining();
+            socketBuffer.clear();
+            socketBuffer.put(wire);
+        }
+    }
+}
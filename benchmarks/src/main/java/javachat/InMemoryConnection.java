@@ -0,0 +1,70 @@
+package javachat;
+
+import java.nio.ByteBuffer;
+
+// A client connection whose "socket" is a buffer: every frame is encoded and
+// copied out as a real write would, without the kernel in the way. All
+// connections write into one shared scratch buffer, each through its own view,
+// so a benchmark with thousands of users measures the server rather than
+// direct-memory allocation.
+final class InMemoryConnection implements ClientConnection {
+    private static final ByteBuffer SCRATCH = ByteBuffer.allocateDirect(Protocol.MAX_FRAME_LENGTH);
+
+    private final String remoteAddress;
+    private final boolean binary;
+    private final ByteBuffer socketBuffer = SCRATCH.duplicate();
+    private long bytesWritten;
+
+    InMemoryConnection(String remoteAddress, boolean binary) {
+        this.remoteAddress = remoteAddress;
+        this.binary = binary;
+    }
+
+    @Override
+    public void send(Frame frame) {
+        ByteBuffer bytes = frame.view(binary);
+        bytesWritten += bytes.remaining();
+        socketBuffer.clear();
+        if (bytes.remaining() <= socketBuffer.capacity()) {
+            socketBuffer.put(bytes);
+        }
+    }
+
+    @Override
+    public void sendWithoutBlocking(Frame frame) {
+        send(frame);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return 0;
+    }
+
+    @Override
+    public long getLastReadNanos() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long getWriteStallNanos(long now) {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+}
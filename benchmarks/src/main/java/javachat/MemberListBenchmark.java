@@ -0,0 +1,43 @@
+package javachat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One user entering and leaving a room of the given size: the newcomer's
+// member snapshot, the UserJoined/UserLeft updates to everyone else and the
+// join/leave system messages. Updates are published immediately rather than
+// batched so each one is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dmulticast.logLevel=off", "-Dmulticast.memberUpdateDelayMs=0",
+        "-Dmulticast.replayOnJoin=0", "-Dmulticast.connectionRate=0"})
+public class MemberListBenchmark {
+    @Param({"10", "100", "1000"})
+    public int roomSize;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private MultiCastServer.ClientHandler visitor;
+    private Frame join;
+    private Frame leave;
+
+    @Setup
+    public void fillRoom() {
+        boolean binary = format.equals(Protocol.BINARY);
+        String roomName = BenchmarkClients.uniqueRoomName("members");
+        BenchmarkClients.fillRoom(roomName, roomSize, binary);
+        visitor = BenchmarkClients.connect("10.1.0.1", binary);
+        join = Frame.of(Protocol.ClientOp.JOIN_ROOM, roomName, "visitor");
+        leave = Frame.of(Protocol.ClientOp.LEAVE_ROOM);
+    }
+
+    @Benchmark
+    public void joinAndLeave() {
+        visitor.onFrame(join);
+        visitor.onFrame(leave);
+    }
+}
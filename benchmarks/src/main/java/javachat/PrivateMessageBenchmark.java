@@ -0,0 +1,53 @@
+package javachat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A private message: recipient lookup among all connected users plus the two
+// writes, for recipients spread over many rooms.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dmulticast.logLevel=off", "-Dmulticast.memberUpdateDelayMs=0",
+        "-Dmulticast.connectionRate=0", "-Dmulticast.userRate=0"})
+public class PrivateMessageBenchmark {
+    private static final int ROOM_SIZE = 100;
+
+    @Param({"100", "10000"})
+    public int users;
+
+    private MultiCastServer.ClientHandler sender;
+    private Frame[] messages;
+    private int next;
+
+    @Setup
+    public void connectUsers() {
+        List<String> names = new ArrayList<>();
+        for (int joined = 0; joined < users; joined += ROOM_SIZE) {
+            String roomName = BenchmarkClients.uniqueRoomName("private");
+            int size = Math.min(ROOM_SIZE, users - joined);
+            List<MultiCastServer.ClientHandler> room = BenchmarkClients.fillRoom(roomName, size, false);
+            for (int i = 0; i < size; i++) {
+                if (sender == null) {
+                    sender = room.get(i);
+                } else {
+                    names.add(BenchmarkClients.userName(roomName, i));
+                }
+            }
+        }
+        messages = new Frame[names.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = Frame.of(Protocol.ClientOp.SEND_MESSAGE, names.get(i), "a private note");
+        }
+    }
+
+    @Benchmark
+    public void sendPrivateMessage() {
+        sender.onFrame(messages[next]);
+        next = next + 1 == messages.length ? 0 : next + 1;
+    }
+}
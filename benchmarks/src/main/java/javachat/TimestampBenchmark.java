@@ -0,0 +1,35 @@
+package javachat;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Event log timestamps: the common case reuses the string formatted for the
+// current second; a new second formats a fresh one.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+    private EventLogger logger;
+    private long timeMillis;
+
+    @Setup
+    public void createLogger() {
+        logger = new EventLogger(Writer.nullWriter(), EventLogger.Level.OFF, 2, 1);
+        timeMillis = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public String sameSecond() {
+        return logger.timestamp(timeMillis);
+    }
+
+    @Benchmark
+    public String newSecond() {
+        timeMillis += 1000;
+        return logger.timestamp(timeMillis);
+    }
+}
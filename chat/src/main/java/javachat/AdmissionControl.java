@@ -0,0 +1,118 @@
+package javachat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+// Decides, before a request is dispatched, whether the server takes it on.
+// Every request draws from its connection's token bucket; chat and private
+// messages also draw from their sender's bucket (kept by name, so reconnecting
+// does not refill it) and room chat from the room's. While the frames queued
+// for all clients exceed the backlog watermark, messages are refused outright:
+// each one would only add to the queues that are already behind.
+//
+// A rate of 0 (or a watermark of 0) turns that check off.
+public class AdmissionControl {
+    public enum Scope {
+        CONNECTION("connection"), USER("user"), ROOM("room"), BACKLOG("backlog");
+
+        private final String keyword;
+
+        Scope(String keyword) {
+            this.keyword = keyword;
+        }
+
+        public String keyword() {
+            return keyword;
+        }
+    }
+
+    // Why a request was refused and when the client may try again.
+    public static final class Rejection {
+        private final Scope scope;
+        private final long retryAfterMillis;
+
+        Rejection(Scope scope, long retryAfterMillis) {
+            this.scope = scope;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public Scope scope() {
+            return scope;
+        }
+
+        public long retryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
+    // How long a client refused for backlog is told to wait.
+    private static final long BACKLOG_RETRY_MILLIS = 100;
+
+    private final double connectionRate;
+    private final int connectionBurst;
+    private final double userRate;
+    private final int userBurst;
+    private final double roomRate;
+    private final int roomBurst;
+    private final long backlogWatermark;
+    private final LongSupplier backlog;
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    public AdmissionControl(double connectionRate, int connectionBurst, double userRate, int userBurst,
+                            double roomRate, int roomBurst, long backlogWatermark, LongSupplier backlog) {
+        this.connectionRate = connectionRate;
+        this.connectionBurst = connectionBurst;
+        this.userRate = userRate;
+        this.userBurst = userBurst;
+        this.roomRate = roomRate;
+        this.roomBurst = roomBurst;
+        this.backlogWatermark = backlogWatermark;
+        this.backlog = backlog;
+    }
+
+    // Null when connection limits are off.
+    public TokenBucket newConnectionBucket() {
+        return connectionRate > 0 ? new TokenBucket(connectionRate, connectionBurst) : null;
+    }
+
+    // Null when room limits are off.
+    public TokenBucket newRoomBucket() {
+        return roomRate > 0 ? new TokenBucket(roomRate, roomBurst) : null;
+    }
+
+    public Rejection admitRequest(TokenBucket connectionBucket) {
+        return take(connectionBucket, Scope.CONNECTION);
+    }
+
+    // A chat or private message from user (null before the sender has a name),
+    // into the given room bucket (null for private messages).
+    public Rejection admitMessage(String user, TokenBucket roomBucket) {
+        if (backlogWatermark > 0 && backlog.getAsLong() > backlogWatermark) {
+            return new Rejection(Scope.BACKLOG, BACKLOG_RETRY_MILLIS);
+        }
+        if (userRate > 0 && user != null) {
+            Rejection rejection = take(userBuckets.computeIfAbsent(user,
+                    name -> new TokenBucket(userRate, userBurst)), Scope.USER);
+            if (rejection != null) {
+                return rejection;
+            }
+        }
+        return take(roomBucket, Scope.ROOM);
+    }
+
+    // Drops the buckets of users that are gone and whose buckets have refilled,
+    // so the map only holds recently active senders.
+    public void evictIdleUsers(Predicate<String> online) {
+        userBuckets.entrySet().removeIf(entry -> !online.test(entry.getKey()) && entry.getValue().isFull());
+    }
+
+    private static Rejection take(TokenBucket bucket, Scope scope) {
+        if (bucket == null) {
+            return null;
+        }
+        long waitMillis = bucket.tryAcquire();
+        return waitMillis == 0 ? null : new Rejection(scope, waitMillis);
+    }
+}
@@ -0,0 +1,506 @@
+package javachat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// The client side of the chat protocol, without any UI: connects, negotiates
+// binary frames and compression, and keeps the connection alive with Pings.
+//
+// Every request goes out behind a "Tag <id>" and returns a future that is
+// completed with the frames the server sent in reply once the matching
+// "Done <id>" arrives, so any number of requests can be in flight at once.
+// The server handles a connection's requests in order, so replies belong to
+// the oldest request still waiting. Frames that are not replies (new and
+// removed rooms, chat, history, member changes) go to the Listener instead.
+//
+// Futures complete and listener methods run on the connection's reader
+// thread, in arrival order; they must not wait for another request there, and
+// a UI should move its work onto its own thread.
+public class ChatClient implements Closeable {
+    // After this long without hearing from the server the reader sends a
+    // Ping, and after as long again it gives the connection up for dead.
+    private static final int HEARTBEAT_INTERVAL_MS = 20_000;
+
+    // Server events; every method does nothing by default.
+    public interface Listener {
+        default void onNewRoom(Room room) {
+        }
+
+        default void onRoomRemoved(int roomId) {
+        }
+
+        default void onMessage(String line) {
+        }
+
+        default void onPrivateMessage(String line) {
+        }
+
+        default void onSystem(String line) {
+        }
+
+        // A message replayed from the current room's history: its sequence, when it
+        // was sent (epoch millis) and its text.
+        default void onHistory(long sequence, long timeMillis, String line) {
+        }
+
+        // Members of the current room: with replace, joined is the whole list.
+        default void onMembers(List<String> joined, List<String> left, boolean replace) {
+        }
+
+        // cause is null when the server closed the connection.
+        default void onDisconnected(IOException cause) {
+        }
+    }
+
+    public static final class Room {
+        private final int id;
+        private final String name;
+        private final String creator;
+        private final InetAddress multicastAddress;
+        private final int port;
+
+        public Room(int id, String name, String creator, InetAddress multicastAddress, int port) {
+            this.id = id;
+            this.name = name;
+            this.creator = creator;
+            this.multicastAddress = multicastAddress;
+            this.port = port;
+        }
+
+        // From a Room, RoomCreated or NewRoom frame.
+        static Room of(Frame frame) {
+            try {
+                return new Room(frame.getInt(0), frame.getString(1), frame.getString(2),
+                        InetAddress.getByName(frame.getString(3)), frame.getInt(4));
+            } catch (UnknownHostException e) {
+                throw new RequestFailedException("Bad multicast address " + frame.getString(3), frame);
+            }
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public String getCreator() { return creator; }
+        public InetAddress getMulticastAddress() { return multicastAddress; }
+        public int getPort() { return port; }
+    }
+
+    // One page of a room list sync: apply it to the list synced so far.
+    public static final class RoomPage {
+        private final boolean reset;
+        private final List<Room> rooms;
+        private final List<Integer> removed;
+        private final long version;
+        private final boolean more;
+
+        RoomPage(boolean reset, List<Room> rooms, List<Integer> removed, long version, boolean more) {
+            this.reset = reset;
+            this.rooms = rooms;
+            this.removed = removed;
+            this.version = version;
+            this.more = more;
+        }
+
+        // The list synced so far is out of date; clear it first.
+        public boolean isReset() { return reset; }
+        public List<Room> getRooms() { return rooms; }
+        public List<Integer> getRemoved() { return removed; }
+        // Version to ask for changes since next time.
+        public long getVersion() { return version; }
+        public boolean hasMore() { return more; }
+    }
+
+    // The server refused the request; getReply is the frame that said so.
+    public static class RequestFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame reply;
+
+        public RequestFailedException(String message, Frame reply) {
+            super(message);
+            this.reply = reply;
+        }
+
+        public Frame getReply() {
+            return reply;
+        }
+    }
+
+    private static final class Request {
+        private final long tag;
+        private final Protocol.ClientOp op;
+        private final CompletableFuture<List<Frame>> future = new CompletableFuture<>();
+        // Only touched by the reader thread.
+        private final List<Frame> replies = new ArrayList<>();
+
+        Request(long tag, Protocol.ClientOp op) {
+            this.tag = tag;
+            this.op = op;
+        }
+    }
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Listener listener;
+    private final FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS);
+    // Frames that arrived while negotiating, handled first by the reader.
+    private final List<Frame> earlyFrames = new ArrayList<>();
+    private volatile boolean binaryProtocol;
+    private final Map<Protocol.ServerOp, Consumer<Frame>> pushHandlers = new EnumMap<>(Protocol.ServerOp.class);
+    // Requests sent and not yet done, oldest first. Guarded by itself, like
+    // closed; writes are serialized on this.
+    private final Queue<Request> inFlight = new ArrayDeque<>();
+    private boolean closed;
+    private long nextTag = 1;
+
+    private ChatClient(Socket socket, Listener listener) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.listener = listener;
+        registerPushHandlers();
+    }
+
+    public static ChatClient connect(String host, int port, Listener listener) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            ChatClient client = new ChatClient(socket, listener);
+            client.negotiate();
+            Thread reader = new Thread(client::read, "chat-client-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+            return client;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public CompletableFuture<RoomPage> getRooms(long sinceVersion) {
+        return request(Protocol.ClientOp.GET_ROOMS, "since", sinceVersion).thenApply(replies -> {
+            boolean reset = false;
+            List<Room> rooms = new ArrayList<>();
+            List<Integer> removed = new ArrayList<>();
+            long version = 0;
+            boolean more = false;
+            for (Frame frame : replies) {
+                switch ((Protocol.ServerOp) frame.op()) {
+                    case ROOM_LIST_RESET:
+                        reset = true;
+                        break;
+                    case ROOM:
+                        rooms.add(Room.of(frame));
+                        break;
+                    case ROOM_REMOVED:
+                        removed.add(frame.getInt(0));
+                        break;
+                    case END_OF_ROOM_LIST:
+                        // Servers without versioned room lists answer with a bare EndOfRoomList.
+                        if (frame.fieldCount() == 2) {
+                            version = frame.getLong(0);
+                            more = frame.getLong(1) != 0;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return new RoomPage(reset, rooms, removed, version, more);
+        });
+    }
+
+    public CompletableFuture<Room> createRoom(String roomName, String userName) {
+        return request(Protocol.ClientOp.CREATE_ROOM, roomName, userName)
+                .thenApply(replies -> Room.of(find(replies, Protocol.ServerOp.ROOM_CREATED)));
+    }
+
+    // Completes with the room's id once the join, the history replay and the
+    // member list have all arrived.
+    public CompletableFuture<Integer> joinRoom(String roomName, String userName) {
+        return request(Protocol.ClientOp.JOIN_ROOM, roomName, userName)
+                .thenApply(replies -> find(replies, Protocol.ServerOp.JOINED_ROOM).getInt(0));
+    }
+
+    // Joins the room this user was last in, which the server remembers across
+    // its restarts; fails with RoomNotFound when there is none.
+    public CompletableFuture<Room> rejoin(String userName) {
+        return request(Protocol.ClientOp.REJOIN, userName)
+                .thenApply(replies -> Room.of(find(replies, Protocol.ServerOp.ROOM)));
+    }
+
+    public CompletableFuture<Void> leaveRoom() {
+        return request(Protocol.ClientOp.LEAVE_ROOM).thenApply(replies -> null);
+    }
+
+    // To the current room.
+    public CompletableFuture<Void> sendMessage(String text) {
+        return request(Protocol.ClientOp.SEND_MESSAGE, "All", text).thenApply(replies -> null);
+    }
+
+    public CompletableFuture<Void> sendPrivateMessage(String userName, String text) {
+        return request(Protocol.ClientOp.SEND_MESSAGE, userName, text).thenApply(replies -> null);
+    }
+
+    // The server's metrics report, in the order it sent them.
+    public CompletableFuture<Map<String, String>> getStats() {
+        return request(Protocol.ClientOp.STATS).thenApply(replies -> {
+            Map<String, String> stats = new LinkedHashMap<>();
+            for (Frame frame : replies) {
+                if (frame.op() == Protocol.ServerOp.STAT) {
+                    stats.put(frame.getString(0), frame.getString(1));
+                }
+            }
+            return stats;
+        });
+    }
+
+    // Any request, completed with every reply frame; fails with
+    // RequestFailedException when the server answers with an error.
+    public CompletableFuture<List<Frame>> request(Protocol.ClientOp op, Object... fields) {
+        Request request;
+        // Queued and written under the same lock, so the queue keeps wire order.
+        synchronized (this) {
+            request = new Request(nextTag++, op);
+            synchronized (inFlight) {
+                if (closed) {
+                    request.future.completeExceptionally(new IOException("Connection closed"));
+                    return request.future;
+                }
+                inFlight.add(request);
+            }
+            try {
+                write(Frame.of(Protocol.ClientOp.TAG, request.tag), Frame.of(op, fields));
+            } catch (IOException e) {
+                // The reader fails the request when it sees the socket closed.
+                closeQuietly();
+            }
+        }
+        return request.future;
+    }
+
+    // Requests still waiting fail once the reader sees the socket closed.
+    @Override
+    public void close() {
+        synchronized (inFlight) {
+            closed = true;
+        }
+        closeQuietly();
+    }
+
+    // Asks for binary frames, then for a compressed stream, then checks that
+    // requests can be tagged. Servers that predate the first two answer
+    // UnknownCommand and the client carries on without them.
+    private void negotiate() throws IOException {
+        write(Frame.of(Protocol.ClientOp.PROTOCOL, Protocol.BINARY));
+        binaryProtocol = awaitReply(Protocol.ServerOp.PROTOCOL_ACCEPTED).switchesToBinary();
+        // The decoder inflates everything after an accepting reply by itself.
+        write(Frame.of(Protocol.ClientOp.COMPRESS, Protocol.DEFLATE));
+        awaitReply(Protocol.ServerOp.COMPRESSION_ACCEPTED);
+        write(Frame.of(Protocol.ClientOp.TAG, 0), Frame.of(Protocol.ClientOp.PING, System.currentTimeMillis()));
+        if (awaitReply(Protocol.ServerOp.DONE).op() != Protocol.ServerOp.DONE) {
+            throw new IOException("The server does not support tagged requests");
+        }
+    }
+
+    // Reads until the reply (or UnknownCommand) arrives; anything else read on
+    // the way is kept for the reader.
+    private Frame awaitReply(Protocol.ServerOp op) throws IOException {
+        Frame[] reply = new Frame[1];
+        while (reply[0] == null) {
+            if (!decoder.readFrom(in, frame -> {
+                if (reply[0] == null && frame != null && (frame.op() == op
+                        || frame.op() == Protocol.ServerOp.UNKNOWN_COMMAND)) {
+                    reply[0] = frame;
+                } else {
+                    earlyFrames.add(frame);
+                }
+            })) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+        return reply[0];
+    }
+
+    private synchronized void write(Frame... frames) throws IOException {
+        for (Frame frame : frames) {
+            ByteBuffer bytes = frame.view(binaryProtocol);
+            byte[] data = new byte[bytes.remaining()];
+            bytes.get(data);
+            out.write(data);
+        }
+        out.flush();
+    }
+
+    private void read() {
+        IOException cause = null;
+        try {
+            for (Frame frame : earlyFrames) {
+                onFrame(frame);
+            }
+            earlyFrames.clear();
+            socket.setSoTimeout(HEARTBEAT_INTERVAL_MS);
+            boolean pinged = false;
+            while (true) {
+                try {
+                    if (!decoder.readFrom(in, this::onFrame)) {
+                        break;
+                    }
+                    pinged = false;
+                } catch (SocketTimeoutException e) {
+                    if (pinged) {
+                        throw new IOException("No reply from the server");
+                    }
+                    write(Frame.of(Protocol.ClientOp.PING, System.currentTimeMillis()));
+                    pinged = true;
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+        }
+        closeQuietly();
+        List<Request> unanswered;
+        synchronized (inFlight) {
+            closed = true;
+            unanswered = new ArrayList<>(inFlight);
+            inFlight.clear();
+        }
+        IOException failure = cause != null ? cause : new EOFException("Server closed the connection");
+        for (Request request : unanswered) {
+            request.future.completeExceptionally(failure);
+        }
+        listener.onDisconnected(cause);
+    }
+
+    private void onFrame(Frame frame) {
+        if (frame == null) {
+            return;
+        }
+        Request oldest;
+        synchronized (inFlight) {
+            oldest = inFlight.peek();
+        }
+        if (frame.op() == Protocol.ServerOp.DONE) {
+            done(frame.getLong(0));
+        } else if (frame.op() == Protocol.ServerOp.ROOM_REMOVED && oldest != null
+                && oldest.op == Protocol.ClientOp.GET_ROOMS) {
+            // Part of the reply while a room list sync is waiting, so the page
+            // and the removals stay in order.
+            oldest.replies.add(frame);
+        } else if (pushHandlers.containsKey(frame.op())) {
+            pushHandlers.get(frame.op()).accept(frame);
+        } else if (oldest != null) {
+            // Replies with no request waiting (the negotiation's Pong) are dropped.
+            oldest.replies.add(frame);
+        }
+    }
+
+    private void registerPushHandlers() {
+        // Answered from the reader, so a busy application cannot make it late.
+        pushHandlers.put(Protocol.ServerOp.PING, frame -> {
+            try {
+                write(Frame.of(Protocol.ClientOp.PONG, frame.getLong(0)));
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        });
+        pushHandlers.put(Protocol.ServerOp.NEW_ROOM, frame -> listener.onNewRoom(Room.of(frame)));
+        pushHandlers.put(Protocol.ServerOp.ROOM_REMOVED, frame -> listener.onRoomRemoved(frame.getInt(0)));
+        pushHandlers.put(Protocol.ServerOp.MESSAGE, frame -> listener.onMessage(frame.getString(0)));
+        pushHandlers.put(Protocol.ServerOp.PRIVATE_MESSAGE, frame -> listener.onPrivateMessage(frame.getString(0)));
+        pushHandlers.put(Protocol.ServerOp.SYSTEM, frame -> listener.onSystem(frame.getString(0)));
+        pushHandlers.put(Protocol.ServerOp.HISTORY,
+                frame -> listener.onHistory(frame.getLong(0), frame.getLong(1), frame.getString(2)));
+        pushHandlers.put(Protocol.ServerOp.USER_LIST, frame -> listener.onMembers(frame.getList(0), List.of(), true));
+        pushHandlers.put(Protocol.ServerOp.CLEAR_USER_LIST, frame -> listener.onMembers(List.of(), List.of(), true));
+        pushHandlers.put(Protocol.ServerOp.USER, frame -> {
+            // Text snapshots list "All" first, as the private-message target for everyone.
+            if (!frame.getString(0).equals("All")) {
+                listener.onMembers(List.of(frame.getString(0)), List.of(), false);
+            }
+        });
+        pushHandlers.put(Protocol.ServerOp.END_OF_USER_LIST, frame -> { });
+        pushHandlers.put(Protocol.ServerOp.USER_JOINED,
+                frame -> listener.onMembers(List.of(frame.getString(0)), List.of(), false));
+        pushHandlers.put(Protocol.ServerOp.USER_LEFT,
+                frame -> listener.onMembers(List.of(), List.of(frame.getString(0)), false));
+        pushHandlers.put(Protocol.ServerOp.USER_LIST_DELTA,
+                frame -> listener.onMembers(frame.getList(0), frame.getList(1), false));
+    }
+
+    private void done(long tag) {
+        Request request;
+        synchronized (inFlight) {
+            request = inFlight.peek();
+            if (request == null || request.tag != tag) {
+                // Negotiation's tag, or one from before a lost reply.
+                return;
+            }
+            inFlight.poll();
+        }
+        RequestFailedException failure = failure(request.replies);
+        if (failure != null) {
+            request.future.completeExceptionally(failure);
+        } else {
+            request.future.complete(request.replies);
+        }
+    }
+
+    private static RequestFailedException failure(List<Frame> replies) {
+        for (Frame frame : replies) {
+            switch ((Protocol.ServerOp) frame.op()) {
+                case ERROR:
+                    return new RequestFailedException(frame.getString(0), frame);
+                case USER_NAME_TAKEN:
+                    return new RequestFailedException(
+                            "The name '" + frame.getString(0) + "' is already in use.", frame);
+                case USER_NOT_FOUND:
+                    return new RequestFailedException("No user named '" + frame.getString(0) + "' is online.", frame);
+                case ROOM_NOT_FOUND:
+                    return new RequestFailedException("That room no longer exists.", frame);
+                case UNKNOWN_COMMAND:
+                    return new RequestFailedException("The server does not understand this request.", frame);
+                case RATE_LIMITED:
+                    return new RequestFailedException("Sending too fast (" + frame.getString(0)
+                            + " limit); retry in " + frame.getLong(1) + " ms", frame);
+                default:
+                    break;
+            }
+        }
+        return null;
+    }
+
+    private static Frame find(List<Frame> replies, Protocol.ServerOp op) {
+        for (Frame frame : replies) {
+            if (frame.op() == op) {
+                return frame;
+            }
+        }
+        throw new RequestFailedException("No " + op.keyword() + " in the reply", null);
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package javachat;
+
+// Outbound side of a connected client, independent of the transport serving it.
+public interface ClientConnection {
+    void send(Frame frame);
+
+    // Like send, but never waits for queue space, whatever the slow consumer
+    // policy: a client with none left is disconnected. For callers holding a
+    // lock that other clients' requests need.
+    void sendWithoutBlocking(Frame frame);
+
+    String getRemoteAddress();
+
+    // Frames queued for this client but not yet written to its socket.
+    int getQueueDepth();
+
+    // Frames discarded because the client fell too far behind.
+    long getDroppedCount();
+
+    // System.nanoTime() when bytes last arrived from the client.
+    long getLastReadNanos();
+
+    // How long queued output has waited, as of now, without any of it reaching
+    // the socket; 0 when nothing is waiting.
+    long getWriteStallNanos(long now);
+
+    void close();
+}
@@ -0,0 +1,287 @@
+package javachat;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Node-to-node links of a sharded cluster. Membership is static: every node is
+// started with the same "id=host:port,..." list, and rooms are assigned to
+// nodes by a consistent-hash ring over the room name.
+//
+// Each node dials every other node and uses that link only to send; what it
+// receives arrives on the links the others dialled. A link that drops is
+// redialled; frames sent while it is down are discarded, and on reconnecting
+// the listener re-sends the state the peer needs (onPeerConnected). A link
+// whose queue overflows is dropped and redialled the same way, since losing
+// a single frame would leave the peer's state wrong for good. The re-sent
+// state itself bypasses the queue bound, as it can be far bigger. When an
+// incoming link drops, the listener forgets what that peer told it (onPeerLost)
+// and the outgoing link is redialled too, since the peer may have restarted.
+//
+// The peer port is bound to one address, by default this node's host in the
+// list. An incoming link must name another node of the list in its HELLO and
+// come from an address that node's host resolves to; anything else is dropped.
+public class Cluster {
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    // Queued to make a link's writer drop its connection and redial.
+    private static final Frame RECONNECT = Frame.of(Protocol.PeerOp.HELLO, "");
+
+    public interface Listener {
+        // The outgoing link to node is up; frames sent now reach it.
+        void onPeerConnected(String node);
+
+        // A frame from node; called on that peer's reader thread.
+        void onPeerFrame(String node, Frame frame);
+
+        // The incoming link from node dropped.
+        void onPeerLost(String node);
+    }
+
+    private final String nodeId;
+    private final String bindAddress;
+    private final Map<String, InetSocketAddress> nodes;
+    private final List<String> nodeIds;
+    private final ConsistentHashRing ring;
+    private final Map<String, PeerLink> links = new HashMap<>();
+    private Listener listener;
+
+    // spec is "id=host:port,id=host:port,..." and includes this node; an empty
+    // bindAddress binds the peer port to this node's host from the spec.
+    public Cluster(String nodeId, String spec, String bindAddress) {
+        Map<String, InetSocketAddress> parsed = new TreeMap<>();
+        for (String entry : spec.split(",")) {
+            String[] idAndAddress = entry.trim().split("=", 2);
+            int colon = idAndAddress[1].lastIndexOf(':');
+            parsed.put(idAndAddress[0], new InetSocketAddress(idAndAddress[1].substring(0, colon),
+                    Integer.parseInt(idAndAddress[1].substring(colon + 1))));
+        }
+        if (!parsed.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not in the cluster list " + spec);
+        }
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress.isEmpty() ? parsed.get(nodeId).getHostString() : bindAddress;
+        this.nodes = parsed;
+        this.nodeIds = new ArrayList<>(parsed.keySet());
+        this.ring = new ConsistentHashRing(nodeIds);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getNodeCount() {
+        return nodeIds.size();
+    }
+
+    // This node's position in the sorted node list; used to split id spaces.
+    public int getNodeIndex() {
+        return nodeIds.indexOf(nodeId);
+    }
+
+    public String ownerOf(String roomName) {
+        return ring.nodeFor(roomName);
+    }
+
+    public boolean isLocal(String node) {
+        return nodeId.equals(node);
+    }
+
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(bindAddress, nodes.get(nodeId).getPort()));
+        Thread acceptor = new Thread(() -> accept(serverSocket), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (String node : nodeIds) {
+            if (!isLocal(node)) {
+                PeerLink link = new PeerLink(node, nodes.get(node));
+                links.put(node, link);
+                Thread writer = new Thread(link, "cluster-link-" + node);
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+        System.out.println("Cluster node " + nodeId + " listening for peers on " + bindAddress + ":"
+                + nodes.get(nodeId).getPort() + " (" + nodeIds.size() + " nodes)");
+    }
+
+    // Returns false when the link to node is down and the frame was discarded.
+    public boolean send(String node, Frame frame) {
+        PeerLink link = links.get(node);
+        return link != null && link.send(frame);
+    }
+
+    public void sendToAll(Frame frame) {
+        for (PeerLink link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> read(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        FrameDecoder decoder = new FrameDecoder(Protocol.PEER_OPS, true);
+        String[] peer = new String[1];
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            while (decoder.readFrom(in, frame -> {
+                if (frame == null) {
+                    return;
+                }
+                if (peer[0] == null) {
+                    if (frame.op() != Protocol.PeerOp.HELLO || !isPeerAt(frame.getString(0), s.getInetAddress())) {
+                        throw new UncheckedIOException(new IOException("Unknown peer " + s.getRemoteSocketAddress()));
+                    }
+                    peer[0] = frame.getString(0);
+                    System.out.println("Cluster peer " + peer[0] + " connected");
+                    return;
+                }
+                listener.onPeerFrame(peer[0], frame);
+            })) {
+                // Frames are handled as they are decoded.
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Cluster link from " + (peer[0] != null ? peer[0] : socket.getRemoteSocketAddress())
+                    + " closed: " + e.getMessage());
+        }
+        if (peer[0] != null) {
+            System.out.println("Cluster peer " + peer[0] + " lost");
+            links.get(peer[0]).reconnect();
+            listener.onPeerLost(peer[0]);
+        }
+    }
+
+    // True if node is another node of the list and address is one its host
+    // resolves to; on loopback any loopback address will do.
+    private boolean isPeerAt(String node, InetAddress address) {
+        InetSocketAddress configured = nodes.get(node);
+        if (configured == null || isLocal(node)) {
+            return false;
+        }
+        try {
+            for (InetAddress candidate : InetAddress.getAllByName(configured.getHostString())) {
+                if (candidate.equals(address) || (candidate.isLoopbackAddress() && address.isLoopbackAddress())) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot resolve cluster node " + node + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    // Outgoing link to one peer: a queue drained by one writer thread, which
+    // also redials whenever the connection breaks.
+    private class PeerLink implements Runnable {
+        private final String node;
+        private final InetSocketAddress address;
+        private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private volatile boolean connected;
+        // What the listener sends from onPeerConnected, which runs on the writer
+        // thread and so cannot wait for the queue to drain. Unbounded, written
+        // out ahead of the queue, and only touched by the writer thread.
+        private final Queue<Frame> resync = new ArrayDeque<>();
+        private volatile Thread writer;
+
+        PeerLink(String node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        boolean send(Frame frame) {
+            if (!connected) {
+                return false;
+            }
+            if (Thread.currentThread() == writer) {
+                resync.add(frame);
+                return true;
+            }
+            if (!queue.offer(frame)) {
+                System.out.println("Cluster link to " + node + " is backed up; reconnecting");
+                reconnect();
+                return false;
+            }
+            return true;
+        }
+
+        void reconnect() {
+            if (connected) {
+                connected = false;
+                // A sender that saw the link up may still fill the queue meanwhile.
+                do {
+                    queue.clear();
+                } while (!queue.offer(RECONNECT));
+            }
+        }
+
+        @Override
+        public void run() {
+            writer = Thread.currentThread();
+            while (true) {
+                boolean linked = false;
+                try (Socket socket = new Socket()) {
+                    socket.connect(address);
+                    linked = true;
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    WritableByteChannel channel = Channels.newChannel(out);
+                    channel.write(Frame.of(Protocol.PeerOp.HELLO, nodeId).view(true));
+                    // Whatever was queued before the link came up is superseded
+                    // by the state the listener sends now.
+                    queue.clear();
+                    resync.clear();
+                    connected = true;
+                    listener.onPeerConnected(node);
+                    for (Frame frame = resync.poll(); frame != null; frame = resync.poll()) {
+                        channel.write(frame.view(true));
+                    }
+                    while (true) {
+                        Frame frame = queue.poll();
+                        if (frame == null) {
+                            out.flush();
+                            frame = queue.take();
+                        }
+                        if (frame == RECONNECT) {
+                            throw new IOException("peer went away");
+                        }
+                        channel.write(frame.view(true));
+                    }
+                } catch (IOException e) {
+                    if (linked) {
+                        System.out.println("Cluster link to " + node + " closed: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                connected = false;
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
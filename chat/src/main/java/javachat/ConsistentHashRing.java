@@ -0,0 +1,45 @@
+package javachat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Maps keys to nodes: each node is hashed onto a ring at many points and a key
+// belongs to the first node point at or after the key's hash. Adding or
+// removing a node only moves the keys next to its points, and the virtual
+// points even out the share each node gets.
+public class ConsistentHashRing {
+    private static final int POINTS_PER_NODE = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public ConsistentHashRing(Collection<String> nodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // First 8 bytes of MD5: stable across JVMs and platforms, unlike hashCode.
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package javachat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// The compressed server-to-client stream of one connection: raw deflate
+// (RFC 1951, no zlib header) from a deflater that lives as long as the
+// connection, so its 32 KB window keeps paying off across messages: room
+// names, user names and repeated phrases cost a few bits after the first time.
+// The writer sync-flushes at the end of each write batch, which ends on a byte
+// boundary with everything written so far decodable by the client.
+//
+// A shared frame is not run through the connection's deflater. Its encoding
+// is deflated once, on its own, and that block is copied into every stream
+// right after a sync flush; the plain bytes are then given to the connection's
+// deflater as a dictionary, which appends them to its window exactly as the
+// client's inflater saw them, so later frames still match against them. A
+// room broadcast is thus deflated once instead of once per member, at the
+// cost of the shared block itself compressing without any context. Short
+// frames barely compress on their own (a chat line stays about its size, where
+// the connection's deflater gets it down to a tenth), so only shared frames of
+// at least SHARED_MIN_BYTES are spliced; shorter ones go through the deflater.
+//
+// Not thread-safe; only the connection's writer uses it.
+public class DeflateOutput {
+    private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+    static final int SHARED_MIN_BYTES = 512;
+    private static final ThreadLocal<Deflater> BLOCK_DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+    private final ServerMetrics metrics;
+    private byte[] output = new byte[4096];
+    private int length;
+    // Input given to the deflater since its last sync flush.
+    private boolean unflushed;
+    private long bytesIn;
+    private long bytesOut;
+    // Since the last drain, for metrics.
+    private long drainBytesIn;
+    private long drainNanos;
+
+    // metrics may be null.
+    public DeflateOutput(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Deflates bytes into a self-contained, sync-flushed (never final) block.
+    public static ByteBuffer deflateBlock(ByteBuffer bytes) {
+        Deflater blockDeflater = BLOCK_DEFLATER.get();
+        blockDeflater.reset();
+        blockDeflater.setInput(bytes);
+        byte[] block = new byte[bytes.remaining() + bytes.remaining() / 8 + 64];
+        int size = 0;
+        while (true) {
+            size += blockDeflater.deflate(block, size, block.length - size, Deflater.SYNC_FLUSH);
+            if (size < block.length) {
+                return ByteBuffer.wrap(block, 0, size).slice();
+            }
+            block = Arrays.copyOf(block, block.length * 2);
+        }
+    }
+
+    public void write(Frame frame, boolean binary) {
+        long start = System.nanoTime();
+        int frameLength = frame.length(binary);
+        drainBytesIn += frameLength;
+        if (frame.isShared() && frameLength >= SHARED_MIN_BYTES) {
+            syncFlush();
+            ByteBuffer block = frame.deflatedView(binary);
+            int size = block.remaining();
+            ensureSpace(size);
+            block.get(output, length, size);
+            length += size;
+            deflater.setDictionary(frame.view(binary));
+        } else {
+            deflater.setInput(frame.view(binary));
+            while (!deflater.needsInput()) {
+                ensureSpace(1);
+                length += deflater.deflate(output, length, output.length - length, Deflater.NO_FLUSH);
+            }
+            unflushed = true;
+        }
+        drainNanos += System.nanoTime() - start;
+    }
+
+    // Compressed bytes waiting to be written.
+    public int pending() {
+        return length;
+    }
+
+    // Takes the compressed bytes produced so far. With flush, the stream is
+    // sync-flushed first so the client can decode everything written to it.
+    public ByteBuffer drain(boolean flush) {
+        if (flush) {
+            long start = System.nanoTime();
+            syncFlush();
+            drainNanos += System.nanoTime() - start;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Arrays.copyOf(output, length));
+        if (metrics != null) {
+            metrics.recordCompression(drainBytesIn, length, drainNanos);
+        }
+        bytesIn += drainBytesIn;
+        bytesOut += length;
+        drainBytesIn = 0;
+        drainNanos = 0;
+        length = 0;
+        return bytes;
+    }
+
+    // Uncompressed bytes written and compressed bytes drained, in total.
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public void end() {
+        deflater.end();
+    }
+
+    private void syncFlush() {
+        if (!unflushed) {
+            return;
+        }
+        while (true) {
+            ensureSpace(64);
+            int space = output.length - length;
+            int count = deflater.deflate(output, length, space, Deflater.SYNC_FLUSH);
+            length += count;
+            if (count < space) {
+                break;
+            }
+        }
+        unflushed = false;
+    }
+
+    private void ensureSpace(int needed) {
+        if (output.length - length < needed) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, length + needed));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package javachat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server event log. Handler threads publish typed events into a
+// preallocated lock-free ring buffer (no formatting, no allocation, no I/O on
+// their side); one background thread formats and writes them in batches.
+// When the ring is full events are dropped and counted rather than blocking.
+public class EventLogger {
+    public enum Level { DEBUG, INFO, WARN, OFF }
+
+    public enum Type {
+        ROOM_CREATED(Level.INFO),
+        ROOM_REMOVED(Level.INFO),
+        JOIN(Level.INFO),
+        LEAVE(Level.INFO),
+        MESSAGE(Level.INFO),
+        PRIVATE_MESSAGE(Level.INFO),
+        SYSTEM_MESSAGE(Level.DEBUG),
+        USER_LIST(Level.DEBUG);
+
+        private final Level level;
+
+        Type(Level level) {
+            this.level = level;
+        }
+    }
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    // With nothing to write, the writer thread sleeps for twice as long each
+    // time, up to the maximum, so an idle logger wakes about 15 times a second.
+    private static final long MIN_IDLE_PARK_NANOS = 1_000_000;
+    private static final long MAX_IDLE_PARK_NANOS = 64_000_000;
+
+    private static class Slot {
+        volatile long sequence = -1;
+        Type type;
+        long timeMillis;
+        String user;
+        String target;
+        String room;
+        String text;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Level level;
+    private final int chatSampleRate;
+    private final Writer writer;
+
+    // Only touched by the writer thread.
+    private final StringBuilder line = new StringBuilder(256);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTimestamp;
+    private long reportedDropped;
+
+    // capacity is rounded up to a power of two; chatSampleRate N keeps one in N
+    // chat, private and system messages.
+    public EventLogger(Writer writer, Level level, int capacity, int chatSampleRate) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.writer = writer;
+        this.level = level;
+        this.chatSampleRate = Math.max(1, chatSampleRate);
+
+        Thread thread = new Thread(this::drain, "event-logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static EventLogger toStandardOut(Level level, int capacity, int chatSampleRate) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 64 * 1024);
+        return new EventLogger(writer, level, capacity, chatSampleRate);
+    }
+
+    public void log(Type type, String user, String target, String room, String text) {
+        if (type.level.compareTo(level) < 0) {
+            return;
+        }
+        if (chatSampleRate > 1 && isSampled(type)
+                && ThreadLocalRandom.current().nextInt(chatSampleRate) != 0) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) sequence & mask];
+        slot.type = type;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.user = user;
+        slot.target = target;
+        slot.room = room;
+        slot.text = text;
+        slot.sequence = sequence;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static boolean isSampled(Type type) {
+        return type == Type.MESSAGE || type == Type.PRIVATE_MESSAGE || type == Type.SYSTEM_MESSAGE;
+    }
+
+    private void drain() {
+        long next = 0;
+        long idlePark = MIN_IDLE_PARK_NANOS;
+        boolean unflushed = false;
+        while (true) {
+            try {
+                Slot slot = slots[(int) next & mask];
+                if (slot.sequence != next) {
+                    if (reportDropped() || unflushed) {
+                        writer.flush();
+                        unflushed = false;
+                    }
+                    LockSupport.parkNanos(idlePark);
+                    idlePark = Math.min(idlePark * 2, MAX_IDLE_PARK_NANOS);
+                    continue;
+                }
+                format(slot);
+                slot.user = slot.target = slot.room = slot.text = null;
+                next++;
+                consumed = next;
+                writer.append(line);
+                unflushed = true;
+                idlePark = MIN_IDLE_PARK_NANOS;
+            } catch (IOException e) {
+                e.printStackTrace();
+                LockSupport.parkNanos(MAX_IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // Returns whether there was anything to report.
+    private boolean reportDropped() throws IOException {
+        long total = dropped.get();
+        if (total == reportedDropped) {
+            return false;
+        }
+        writer.append(timestamp(System.currentTimeMillis()))
+                .append(" - ").append(String.valueOf(total - reportedDropped))
+                .append(" log events dropped (log buffer full)\n");
+        reportedDropped = total;
+        return true;
+    }
+
+    private void format(Slot slot) {
+        line.setLength(0);
+        line.append(timestamp(slot.timeMillis)).append(" - ");
+        switch (slot.type) {
+            case ROOM_CREATED:
+                line.append("User '").append(slot.user).append("' created room '").append(slot.room).append('\'');
+                break;
+            case ROOM_REMOVED:
+                line.append("Room '").append(slot.room).append("' was removed after being idle");
+                break;
+            case JOIN:
+                line.append("User '").append(slot.user).append("' joined room '").append(slot.room).append('\'');
+                break;
+            case LEAVE:
+                line.append("User '").append(slot.user).append("' left room '").append(slot.room).append('\'');
+                break;
+            case MESSAGE:
+                line.append("User '").append(slot.user).append("' has sent a message to room '").append(slot.room)
+                        .append("': '").append(slot.text).append('\'');
+                break;
+            case PRIVATE_MESSAGE:
+                line.append("User '").append(slot.user).append("' has sent a private message to user '")
+                        .append(slot.target).append("': '").append(slot.text).append("' in room '")
+                        .append(slot.room).append('\'');
+                break;
+            case SYSTEM_MESSAGE:
+                line.append("System message: '").append(slot.text).append('\'');
+                break;
+            case USER_LIST:
+                line.append("Roomlist has been sent to every users in room '").append(slot.room).append('\'');
+                break;
+        }
+        line.append('\n');
+    }
+
+    // Timestamps have one-second resolution, so format once per second.
+    String timestamp(long timeMillis) {
+        long second = Math.floorDiv(timeMillis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        return cachedTimestamp;
+    }
+}
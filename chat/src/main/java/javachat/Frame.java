@@ -0,0 +1,216 @@
+package javachat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// One protocol message: an op plus its fields (String, Integer/Long, or a
+// List<String> for 'L' fields). Outbound frames are encoded lazily, at most
+// once per wire format, and every recipient gets its own read-only view of the
+// same bytes, so a broadcast allocates no per-recipient strings or arrays.
+// A shared frame is compressed the same way: once per wire format, into a
+// self-contained deflate block that every compressed connection splices in.
+public final class Frame {
+    private final Protocol.Op op;
+    private final Object[] fields;
+    private final boolean shared;
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer binary;
+    private volatile ByteBuffer deflatedText;
+    private volatile ByteBuffer deflatedBinary;
+
+    private Frame(Protocol.Op op, Object[] fields, boolean shared) {
+        this.op = op;
+        this.fields = fields;
+        this.shared = shared;
+    }
+
+    public static Frame of(Protocol.Op op, Object... fields) {
+        return new Frame(op, fields, false);
+    }
+
+    // A frame sent to many connections, compressed once rather than per recipient.
+    public static Frame shared(Protocol.Op op, Object... fields) {
+        return new Frame(op, fields, true);
+    }
+
+    public Protocol.Op op() {
+        return op;
+    }
+
+    public int fieldCount() {
+        return fields.length;
+    }
+
+    public String getString(int index) {
+        return (String) fields[index];
+    }
+
+    public long getLong(int index) {
+        return ((Number) fields[index]).longValue();
+    }
+
+    public int getInt(int index) {
+        return ((Number) fields[index]).intValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> getList(int index) {
+        return (List<String>) fields[index];
+    }
+
+    // True for the acknowledgement after which its sender switches to binary frames.
+    public boolean switchesToBinary() {
+        return op.switchesToBinary() && fields.length > 0 && Protocol.BINARY.equals(fields[0]);
+    }
+
+    // True for the acknowledgement after which its sender compresses its output.
+    public boolean startsCompression() {
+        return op == Protocol.ServerOp.COMPRESSION_ACCEPTED && fields.length > 0
+                && Protocol.DEFLATE.equals(fields[0]);
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    // Independent position/limit over the shared encoded bytes.
+    public ByteBuffer view(boolean binaryEncoding) {
+        return binaryEncoding ? binaryBytes().duplicate() : textBytes().duplicate();
+    }
+
+    public int length(boolean binaryEncoding) {
+        return binaryEncoding ? binaryBytes().capacity() : textBytes().capacity();
+    }
+
+    // The encoding as a sync-flushed deflate block that needs no earlier
+    // stream context; see DeflateOutput.
+    public ByteBuffer deflatedView(boolean binaryEncoding) {
+        ByteBuffer bytes = binaryEncoding ? deflatedBinary : deflatedText;
+        if (bytes == null) {
+            bytes = DeflateOutput.deflateBlock(view(binaryEncoding)).asReadOnlyBuffer();
+            if (binaryEncoding) {
+                deflatedBinary = bytes;
+            } else {
+                deflatedText = bytes;
+            }
+        }
+        return bytes.duplicate();
+    }
+
+    private ByteBuffer textBytes() {
+        ByteBuffer bytes = text;
+        if (bytes == null) {
+            bytes = ByteBuffer.wrap(encodeText().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            text = bytes;
+        }
+        return bytes;
+    }
+
+    private ByteBuffer binaryBytes() {
+        ByteBuffer bytes = binary;
+        if (bytes == null) {
+            bytes = ByteBuffer.wrap(encodeBinary()).asReadOnlyBuffer();
+            binary = bytes;
+        }
+        return bytes;
+    }
+
+    private String encodeText() {
+        StringBuilder line = new StringBuilder();
+        if (op == Protocol.ServerOp.USER_LIST) {
+            line.append("ClearUserList\nUser All\n");
+            for (String user : getList(0)) {
+                line.append("User ").append(sanitize(user)).append('\n');
+            }
+            return line.append("EndOfUserList\n").toString();
+        }
+        if (op == Protocol.ServerOp.USER_LIST_DELTA) {
+            for (String user : getList(0)) {
+                line.append("UserJoined ").append(sanitize(user)).append('\n');
+            }
+            for (String user : getList(1)) {
+                line.append("UserLeft ").append(sanitize(user)).append('\n');
+            }
+            return line.toString();
+        }
+        if (op.keyword() != null) {
+            line.append(op.keyword());
+        }
+        for (Object field : fields) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(sanitize(String.valueOf(field)));
+        }
+        return line.append('\n').toString();
+    }
+
+    // Text clients cannot receive embedded line breaks; binary ones get them intact.
+    private static String sanitize(String value) {
+        return value.indexOf('\n') < 0 && value.indexOf('\r') < 0
+                ? value : value.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private byte[] encodeBinary() {
+        String schema = op.schema();
+        Object[] encoded = new Object[fields.length];
+        int bodyLength = 1;
+        for (int i = 0; i < fields.length; i++) {
+            switch (schema.charAt(i)) {
+                case 'N':
+                    bodyLength += Protocol.varintLength(((Number) fields[i]).longValue());
+                    break;
+                case 'S': {
+                    byte[] value = stringBytes(fields[i]);
+                    encoded[i] = value;
+                    bodyLength += Protocol.varintLength(value.length) + value.length;
+                    break;
+                }
+                case 'L': {
+                    List<String> values = getList(i);
+                    byte[][] items = new byte[values.size()][];
+                    bodyLength += Protocol.varintLength(items.length);
+                    for (int j = 0; j < items.length; j++) {
+                        items[j] = stringBytes(values.get(j));
+                        bodyLength += Protocol.varintLength(items[j].length) + items[j].length;
+                    }
+                    encoded[i] = items;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad schema for " + op);
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(Protocol.varintLength(bodyLength) + bodyLength);
+        Protocol.writeVarint(out, bodyLength);
+        out.put((byte) op.code());
+        for (int i = 0; i < fields.length; i++) {
+            switch (schema.charAt(i)) {
+                case 'N':
+                    Protocol.writeVarint(out, ((Number) fields[i]).longValue());
+                    break;
+                case 'S':
+                    putBytes(out, (byte[]) encoded[i]);
+                    break;
+                default:
+                    byte[][] items = (byte[][]) encoded[i];
+                    Protocol.writeVarint(out, items.length);
+                    for (byte[] item : items) {
+                        putBytes(out, item);
+                    }
+            }
+        }
+        return out.array();
+    }
+
+    private static byte[] stringBytes(Object value) {
+        return value == null ? new byte[0] : value.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] value) {
+        Protocol.writeVarint(out, value.length);
+        out.put(value);
+    }
+}
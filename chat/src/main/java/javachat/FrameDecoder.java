@@ -0,0 +1,290 @@
+package javachat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Turns the inbound byte stream of one connection into Frames. Starts in text
+// mode (one message per line) and switches to binary length-prefixed frames
+// right after decoding the peer's "switch to binary" message, so the bytes
+// that follow it in the same read are already decoded as binary. Likewise,
+// everything after a "CompressionAccepted deflate" is inflated before it is
+// decoded.
+//
+// Unknown or malformed messages, including ones missing required fields, are
+// passed to the sink as null, so the receiver can still answer each request.
+public class FrameDecoder {
+    private static final int INITIAL_BUFFER = 256;
+    private static final int INFLATE_CHUNK = 8 * 1024;
+
+    private final Protocol.OpTable ops;
+    private boolean binary;
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int length;
+    private int scanFrom;
+    private int cursor;
+    // Set once the stream is compressed; raw holds compressed reads.
+    private Inflater inflater;
+    private byte[] raw;
+
+    public FrameDecoder(Protocol.OpTable ops) {
+        this(ops, false);
+    }
+
+    // Decoders for links that never use text start out binary.
+    public FrameDecoder(Protocol.OpTable ops, boolean binary) {
+        this.ops = ops;
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isCompressed() {
+        return inflater != null;
+    }
+
+    // Reads once from a blocking stream; returns false at end of stream.
+    public boolean readFrom(InputStream in, Consumer<Frame> sink) throws IOException {
+        if (inflater != null) {
+            if (raw == null) {
+                raw = new byte[INFLATE_CHUNK];
+            }
+            int count = in.read(raw);
+            if (count < 0) {
+                return false;
+            }
+            inflate(ByteBuffer.wrap(raw, 0, count), sink);
+            return true;
+        }
+        ensureSpace(1);
+        int count = in.read(buffer, length, buffer.length - length);
+        if (count < 0) {
+            return false;
+        }
+        length += count;
+        decode(sink);
+        return true;
+    }
+
+    public void feed(ByteBuffer source, Consumer<Frame> sink) throws IOException {
+        if (inflater != null) {
+            inflate(source, sink);
+            return;
+        }
+        int count = source.remaining();
+        ensureSpace(count);
+        source.get(buffer, length, count);
+        length += count;
+        decode(sink);
+    }
+
+    private void ensureSpace(int needed) {
+        if (buffer.length - length < needed) {
+            int size = buffer.length;
+            while (size - length < needed) {
+                size *= 2;
+            }
+            buffer = Arrays.copyOf(buffer, size);
+        }
+    }
+
+    // Inflates in chunks, decoding as it goes, so a small compressed input
+    // cannot expand into more than one chunk plus one frame of buffer.
+    private void inflate(ByteBuffer source, Consumer<Frame> sink) throws IOException {
+        inflater.setInput(source);
+        while (true) {
+            ensureSpace(INFLATE_CHUNK);
+            int count;
+            try {
+                count = inflater.inflate(buffer, length, INFLATE_CHUNK);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed stream", e);
+            }
+            if (count == 0) {
+                break;
+            }
+            length += count;
+            decode(sink);
+        }
+    }
+
+    private void decode(Consumer<Frame> sink) throws IOException {
+        int position = 0;
+        ByteBuffer compressedTail = null;
+        while (position < length && compressedTail == null) {
+            Frame frame;
+            if (!binary) {
+                int newline = -1;
+                for (int i = Math.max(position, scanFrom); i < length; i++) {
+                    if (buffer[i] == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline < 0) {
+                    scanFrom = length;
+                    break;
+                }
+                int end = (newline > position && buffer[newline - 1] == '\r') ? newline - 1 : newline;
+                frame = parseText(new String(buffer, position, end - position, StandardCharsets.UTF_8));
+                position = newline + 1;
+            } else {
+                cursor = position;
+                long frameLength = readVarint(length);
+                if (frameLength < 0) {
+                    break;
+                }
+                if (frameLength == 0 || frameLength > Protocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + frameLength);
+                }
+                int end = cursor + (int) frameLength;
+                if (end > length) {
+                    break;
+                }
+                frame = parseBinary(end);
+                position = end;
+            }
+
+            sink.accept(frame);
+            if (frame != null && frame.switchesToBinary()) {
+                binary = true;
+            }
+            if (frame != null && frame.startsCompression() && inflater == null) {
+                // The rest of this read is already compressed.
+                inflater = new Inflater(true);
+                compressedTail = ByteBuffer.wrap(Arrays.copyOfRange(buffer, position, length));
+                length = position;
+            }
+        }
+
+        System.arraycopy(buffer, position, buffer, 0, length - position);
+        length -= position;
+        scanFrom = Math.max(0, scanFrom - position);
+        if (length > Protocol.MAX_FRAME_LENGTH + 16) {
+            throw new IOException("Message too long");
+        }
+        if (length == 0 && buffer.length > INITIAL_BUFFER * 16) {
+            buffer = new byte[INITIAL_BUFFER];
+        }
+        if (compressedTail != null) {
+            inflate(compressedTail, sink);
+        }
+    }
+
+    private Frame parseText(String line) {
+        int space = line.indexOf(' ');
+        Protocol.Op op = ops.byKeyword(space < 0 ? line : line.substring(0, space));
+        if (op == null) {
+            return null;
+        }
+        if (op.keyword() == null) {
+            return Frame.of(op, line);
+        }
+
+        String schema = op.schema();
+        Object[] fields = new Object[schema.length()];
+        int count = 0;
+        int start = space + 1;
+        while (space >= 0 && count < schema.length()) {
+            boolean last = count == schema.length() - 1;
+            int end = last ? -1 : line.indexOf(' ', start);
+            String token = line.substring(start, end < 0 ? line.length() : end);
+            if (schema.charAt(count) == 'N') {
+                try {
+                    fields[count] = Long.parseLong(token);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                fields[count] = token;
+            }
+            count++;
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (count < op.minFields()) {
+            return null;
+        }
+        return Frame.of(op, count == fields.length ? fields : Arrays.copyOf(fields, count));
+    }
+
+    private Frame parseBinary(int end) throws IOException {
+        Protocol.Op op = ops.byCode(buffer[cursor++]);
+        if (op == null) {
+            return null;
+        }
+        String schema = op.schema();
+        Object[] fields = new Object[schema.length()];
+        int count = 0;
+        while (cursor < end && count < schema.length()) {
+            switch (schema.charAt(count)) {
+                case 'N':
+                    fields[count] = checked(readVarint(end));
+                    break;
+                case 'S':
+                    fields[count] = readString(end);
+                    break;
+                default:
+                    // Every item takes at least its one-byte length.
+                    int items = checkedLength(readVarint(end), end);
+                    List<String> values = new ArrayList<>(Math.min(items, 1024));
+                    for (int i = 0; i < items; i++) {
+                        values.add(readString(end));
+                    }
+                    fields[count] = values;
+            }
+            count++;
+        }
+        if (count < op.minFields()) {
+            return null;
+        }
+        return Frame.of(op, count == fields.length ? fields : Arrays.copyOf(fields, count));
+    }
+
+    private String readString(int end) throws IOException {
+        int size = checkedLength(readVarint(end), end);
+        String value = new String(buffer, cursor, size, StandardCharsets.UTF_8);
+        cursor += size;
+        return value;
+    }
+
+    private static long checked(long value) throws IOException {
+        if (value < 0) {
+            throw new IOException("Malformed frame");
+        }
+        return value;
+    }
+
+    // A length or count can never exceed the bytes left in the frame; checked
+    // before the cast, so a huge varint cannot turn into a negative int.
+    private int checkedLength(long value, int end) throws IOException {
+        if (value < 0 || value > end - cursor) {
+            throw new IOException("Malformed frame");
+        }
+        return (int) value;
+    }
+
+    // Reads an unsigned varint at cursor, or returns -1 if it runs past limit.
+    private long readVarint(int limit) {
+        long value = 0;
+        for (int shift = 0; cursor < limit && shift < 64; shift += 7) {
+            byte b = buffer[cursor++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,459 @@
+package javachat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless load driver. Simulates many chat users over the client protocol:
+// every user joins one of the rooms, room messages and private messages are
+// sent at a fixed total rate by random users, and users hop between rooms to
+// produce join/leave churn. Each message carries its send time, so every
+// delivery yields an end-to-end latency sample.
+//
+// Usage: java -cp chat/target/classes [-Dload.<option>=<value> ...] javachat.LoadGenerator
+// Options (see README): host, port, users, rooms, rate, privateRatio, churn,
+// seconds, warmupSeconds, messageBytes, connectRate, threads, binary, compress.
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", 12344);
+    private static final int USERS = Integer.getInteger("load.users", 1000);
+    private static final int ROOMS = Integer.getInteger("load.rooms", 10);
+    // Messages per second over all users, and the share of them that are private.
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "1000"));
+    private static final double PRIVATE_RATIO = Double.parseDouble(System.getProperty("load.privateRatio", "0.1"));
+    // Room changes (a LeaveRoom followed by a JoinRoom) per second over all users.
+    private static final double CHURN = Double.parseDouble(System.getProperty("load.churn", "5"));
+    private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    private static final int MESSAGE_BYTES = Integer.getInteger("load.messageBytes", 64);
+    private static final double CONNECT_RATE = Double.parseDouble(System.getProperty("load.connectRate", "1000"));
+    private static final int THREADS = Integer.getInteger("load.threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final boolean BINARY = Boolean.getBoolean("load.binary");
+    private static final boolean COMPRESS = Boolean.getBoolean("load.compress");
+    private static final long SETUP_TIMEOUT_MS = 120_000;
+
+    // Precedes the send time in every message, after the server's "<sender>: ".
+    private static final String MARKER = ": lg ";
+
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final String padding;
+    private final User[] users = new User[USERS];
+    private final String[] roomNames = new String[ROOMS];
+    private final EventLoop[] loops = new EventLoop[THREADS];
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger joinedUsers = new AtomicInteger();
+    private final AtomicLong roomMessagesSent = new AtomicLong();
+    private final AtomicLong privateMessagesSent = new AtomicLong();
+    private final AtomicLong roomChanges = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    // Zero until every user has joined; then the time from which sending is paced.
+    private volatile long sendStartNanos;
+    private volatile boolean sending;
+    private volatile boolean stopped;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    private LoadGenerator() {
+        int fixed = MARKER.length() + 20;
+        padding = " " + "x".repeat(Math.max(0, MESSAGE_BYTES - fixed));
+        for (int i = 0; i < ROOMS; i++) {
+            roomNames[i] = "load-" + runId + "-room-" + i;
+        }
+        for (int i = 0; i < USERS; i++) {
+            users[i] = new User("load-" + runId + "-user-" + i, i % ROOMS);
+        }
+    }
+
+    private void run() throws Exception {
+        System.out.printf("%d users, %d rooms, %.0f msg/s (%.0f%% private), %.1f room changes/s, %s protocol%s, %s:%d%n",
+                USERS, ROOMS, RATE, PRIVATE_RATIO * 100, CHURN, BINARY ? "binary" : "text",
+                COMPRESS ? " (deflate)" : "", HOST, PORT);
+        createRooms();
+
+        long setupStart = System.nanoTime();
+        for (int i = 0; i < THREADS; i++) {
+            loops[i] = new EventLoop(i);
+            Thread thread = new Thread(loops[i], "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long setupDeadline = System.currentTimeMillis() + SETUP_TIMEOUT_MS;
+        while (joinedUsers.get() + connectErrors.get() + disconnects.get() < USERS
+                && System.currentTimeMillis() < setupDeadline) {
+            Thread.sleep(50);
+        }
+        System.out.printf("%d of %d users joined in %.1f s (%d connection errors)%n",
+                joinedUsers.get(), USERS, (System.nanoTime() - setupStart) / 1e9, connectErrors.get());
+
+        sendStartNanos = System.nanoTime();
+        sending = true;
+        Thread.sleep(WARMUP_SECONDS * 1000L);
+
+        // Measurement window: everything before it was warmup.
+        latency.reset();
+        long sentBefore = roomMessagesSent.get() + privateMessagesSent.get();
+        long deliveredBefore = delivered.get();
+        long errorsBefore = serverErrors.get();
+        long rateLimitedBefore = rateLimited.get();
+        long disconnectsBefore = disconnects.get();
+        long changesBefore = roomChanges.get();
+        long bytesBefore = bytesReceived.get();
+        long measureStart = System.nanoTime();
+        System.out.printf("%6s %10s %12s %9s %9s %9s %7s%n",
+                "time", "sent/s", "delivered/s", "p50 ms", "p99 ms", "p999 ms", "errors");
+        long lastSent = sentBefore;
+        long lastDelivered = deliveredBefore;
+        for (int second = 1; second <= SECONDS; second++) {
+            Thread.sleep(Math.max(0, measureStart + second * 1_000_000_000L - System.nanoTime()) / 1_000_000);
+            long sent = roomMessagesSent.get() + privateMessagesSent.get();
+            long received = delivered.get();
+            System.out.printf("%5ds %10d %12d %9.3f %9.3f %9.3f %7d%n", second, sent - lastSent, received - lastDelivered,
+                    millis(latency.getPercentile(0.50)), millis(latency.getPercentile(0.99)),
+                    millis(latency.getPercentile(0.999)), serverErrors.get() - errorsBefore);
+            lastSent = sent;
+            lastDelivered = received;
+        }
+        sending = false;
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        // Let messages already sent arrive before the totals are taken.
+        Thread.sleep(1000);
+        stopped = true;
+
+        long sent = roomMessagesSent.get() + privateMessagesSent.get() - sentBefore;
+        long received = delivered.get() - deliveredBefore;
+        System.out.println();
+        System.out.printf("Users       %d joined, %d connection errors, %d disconnects%n",
+                joinedUsers.get(), connectErrors.get(), disconnects.get() - disconnectsBefore);
+        System.out.printf("Sent        %d messages (%.0f/s), %d room changes%n",
+                sent, sent / seconds, roomChanges.get() - changesBefore);
+        System.out.printf("Delivered   %d messages (%.0f/s)%n", received, received / seconds);
+        long bytes = bytesReceived.get() - bytesBefore;
+        System.out.printf("Received    %d bytes (%.0f KB/s)%n", bytes, bytes / seconds / 1024);
+        System.out.printf("Latency ms  p50 %.3f  p99 %.3f  p999 %.3f  max %.3f  mean %.3f%n",
+                millis(latency.getPercentile(0.50)), millis(latency.getPercentile(0.99)),
+                millis(latency.getPercentile(0.999)), millis(latency.getMax()), latency.getMean() / 1e6);
+        System.out.printf("Errors      %d server error replies%n", serverErrors.get() - errorsBefore);
+        System.out.printf("Shed        %d messages refused with RateLimited%n", rateLimited.get() - rateLimitedBefore);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    // Creates this run's rooms over a separate connection before any user joins.
+    private void createRooms() throws IOException {
+        try (Socket socket = new Socket(HOST, PORT)) {
+            OutputStream out = socket.getOutputStream();
+            for (String roomName : roomNames) {
+                ByteBuffer bytes = Frame.of(Protocol.ClientOp.CREATE_ROOM, roomName, "load-" + runId).view(false);
+                byte[] data = new byte[bytes.remaining()];
+                bytes.get(data);
+                out.write(data);
+            }
+            out.flush();
+            InputStream in = socket.getInputStream();
+            FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS);
+            int[] answered = new int[1];
+            while (answered[0] < ROOMS) {
+                boolean open = decoder.readFrom(in, frame -> {
+                    if (frame != null && frame.op() == Protocol.ServerOp.ROOM_CREATED) {
+                        answered[0]++;
+                    } else if (frame != null && frame.op() == Protocol.ServerOp.ERROR) {
+                        throw new IllegalStateException("Could not create rooms: " + frame.getString(0));
+                    }
+                });
+                if (!open) {
+                    throw new IOException("Server closed the connection while creating rooms");
+                }
+            }
+        }
+    }
+
+    private String payload() {
+        return "lg " + System.nanoTime() + padding;
+    }
+
+    // Records the latency of a delivered message sent by this process.
+    private void onDelivered(String text) {
+        int at = text.indexOf(MARKER);
+        if (at < 0) {
+            return;
+        }
+        long sentNanos = 0;
+        for (int i = at + MARKER.length(); i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            sentNanos = sentNanos * 10 + (c - '0');
+        }
+        latency.record(System.nanoTime() - sentNanos);
+        delivered.incrementAndGet();
+    }
+
+    private final class User {
+        private final String name;
+        private int room;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private final FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS);
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        // Requests after "Protocol binary" are binary; the request itself is text.
+        private boolean binaryOutput;
+        // Whether the server has confirmed the current room; read by other
+        // loops picking private message recipients.
+        private volatile boolean joined;
+        private boolean everJoined;
+
+        User(String name, int room) {
+            this.name = name;
+            this.room = room;
+        }
+
+        void send(Frame frame) throws IOException {
+            ByteBuffer bytes = frame.view(binaryOutput);
+            binaryOutput |= frame.switchesToBinary();
+            if (output.isEmpty()) {
+                channel.write(bytes);
+            }
+            if (bytes.hasRemaining()) {
+                output.add(bytes);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void flush() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer bytes = output.peek();
+                channel.write(bytes);
+                if (bytes.hasRemaining()) {
+                    return;
+                }
+                output.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void joinRoom(int room) throws IOException {
+            this.room = room;
+            send(Frame.of(Protocol.ClientOp.JOIN_ROOM, roomNames[room], name));
+        }
+
+        void onFrame(Frame frame) {
+            if (frame == null) {
+                return;
+            }
+            switch ((Protocol.ServerOp) frame.op()) {
+                case JOINED_ROOM:
+                    joined = true;
+                    if (!everJoined) {
+                        everJoined = true;
+                        joinedUsers.incrementAndGet();
+                    }
+                    break;
+                case MESSAGE:
+                    onDelivered(frame.getString(0));
+                    break;
+                case PRIVATE_MESSAGE:
+                    // The sender also gets a "To ..." copy; only the recipient's counts.
+                    if (frame.getString(0).startsWith("From ")) {
+                        onDelivered(frame.getString(0));
+                    }
+                    break;
+                case ERROR:
+                case UNKNOWN_COMMAND:
+                case ROOM_NOT_FOUND:
+                case USER_NOT_FOUND:
+                case USER_NAME_TAKEN:
+                    serverErrors.incrementAndGet();
+                    break;
+                case RATE_LIMITED:
+                    rateLimited.incrementAndGet();
+                    break;
+                case PING:
+                    // Quiet users must answer, or the server reaps them as dead.
+                    try {
+                        send(Frame.of(Protocol.ClientOp.PONG, frame.getLong(0)));
+                    } catch (IOException e) {
+                        // The next read or write on the channel reports it.
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // Owns every THREADS-th user: connects them at its share of the connect
+    // rate, reads and writes their sockets, and sends its share of the load.
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final List<User> owned = new ArrayList<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private int connected;
+        private long messagesSent;
+        private long changesMade;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            for (int i = index; i < USERS; i += THREADS) {
+                owned.add(users[i]);
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                while (!stopped) {
+                    long now = System.nanoTime();
+                    connectDue(now - start);
+                    selector.select(1);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handle(key);
+                    }
+                    selector.selectedKeys().clear();
+                    if (sending) {
+                        sendDue(now - sendStartNanos);
+                    }
+                }
+                for (User user : owned) {
+                    if (user.channel != null) {
+                        user.channel.close();
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void connectDue(long elapsedNanos) {
+            long due = Math.min(owned.size(), (long) (elapsedNanos / 1e9 * CONNECT_RATE / THREADS) + 1);
+            while (connected < due) {
+                User user = owned.get(connected++);
+                try {
+                    user.channel = SocketChannel.open();
+                    user.channel.configureBlocking(false);
+                    user.channel.connect(new InetSocketAddress(HOST, PORT));
+                    user.key = user.channel.register(selector, SelectionKey.OP_CONNECT, user);
+                } catch (IOException e) {
+                    connectErrors.incrementAndGet();
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            User user = (User) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    user.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    // Later requests follow the switch immediately; the server
+                    // decodes them as binary as soon as it has read this one.
+                    if (BINARY) {
+                        user.send(Frame.of(Protocol.ClientOp.PROTOCOL, Protocol.BINARY));
+                    }
+                    // The decoder inflates everything after the acknowledgement.
+                    if (COMPRESS) {
+                        user.send(Frame.of(Protocol.ClientOp.COMPRESS, Protocol.DEFLATE));
+                    }
+                    user.joinRoom(user.room);
+                    return;
+                }
+                if (key.isWritable()) {
+                    user.flush();
+                }
+                if (key.isReadable()) {
+                    readBuffer.clear();
+                    int count = user.channel.read(readBuffer);
+                    if (count < 0) {
+                        throw new IOException("Server closed the connection");
+                    }
+                    bytesReceived.addAndGet(count);
+                    readBuffer.flip();
+                    user.decoder.feed(readBuffer, user::onFrame);
+                }
+            } catch (IOException e) {
+                if (user.everJoined) {
+                    disconnects.incrementAndGet();
+                } else {
+                    connectErrors.incrementAndGet();
+                }
+                user.joined = false;
+                key.cancel();
+                try {
+                    user.channel.close();
+                } catch (IOException ignored) {
+                    // Already counted.
+                }
+            }
+        }
+
+        // Paces this loop's share of messages and room changes from the send start.
+        private void sendDue(long elapsedNanos) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double elapsedSeconds = elapsedNanos / 1e9;
+            long messagesDue = (long) (elapsedSeconds * RATE / THREADS);
+            for (int attempts = 0; messagesSent < messagesDue && attempts < owned.size(); attempts++) {
+                User sender = owned.get(random.nextInt(owned.size()));
+                if (!sender.joined) {
+                    continue;
+                }
+                try {
+                    if (random.nextDouble() < PRIVATE_RATIO) {
+                        User recipient = users[random.nextInt(USERS)];
+                        if (recipient == sender || !recipient.joined) {
+                            continue;
+                        }
+                        sender.send(Frame.of(Protocol.ClientOp.SEND_MESSAGE, recipient.name, payload()));
+                        privateMessagesSent.incrementAndGet();
+                    } else {
+                        sender.send(Frame.of(Protocol.ClientOp.SEND_MESSAGE, "All", payload()));
+                        roomMessagesSent.incrementAndGet();
+                    }
+                    messagesSent++;
+                    attempts = 0;
+                } catch (IOException e) {
+                    sender.joined = false;
+                }
+            }
+
+            long changesDue = (long) (elapsedSeconds * CHURN / THREADS);
+            while (changesMade < changesDue) {
+                changesMade++;
+                User user = owned.get(random.nextInt(owned.size()));
+                if (!user.joined) {
+                    continue;
+                }
+                try {
+                    user.joined = false;
+                    user.send(Frame.of(Protocol.ClientOp.LEAVE_ROOM));
+                    user.joinRoom(random.nextInt(ROOMS));
+                    roomChanges.incrementAndGet();
+                } catch (IOException e) {
+                    // Reported when the loop next reads the connection.
+                }
+            }
+        }
+    }
+}
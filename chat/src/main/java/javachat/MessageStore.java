@@ -0,0 +1,312 @@
+package javachat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Persistent room chat history. Each room has a directory of append-only
+// segments named after their first sequence number:
+//
+//   <dir>/room-<id>/<base>.log  records: [int length][long sequence][long time][UTF-8 text]
+//   <dir>/room-<id>/<base>.idx  one int per record: its offset in the .log
+//
+// Both files are memory-mapped at a fixed size, so appends and replays are
+// plain memory accesses with no read/write calls. A room's first segment is
+// small and each one after it twice the size of the last, up to the segment
+// size, so the many rooms that see little chat map little address space. A record's length is written
+// last; on startup every segment is scanned up to the first incomplete record
+// and its index rebuilt. Old segments are deleted once a room's history
+// exceeds the size limit or its messages exceed the age limit.
+public class MessageStore {
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    // Index capacity assumes records average at least this many bytes.
+    private static final int MIN_AVERAGE_RECORD = 32;
+    private static final int FIRST_SEGMENT_BYTES = 64 * 1024;
+    private static final long RETENTION_INTERVAL_MS = 60_000;
+
+    public interface RecordVisitor {
+        void visit(long sequence, long timeMillis, String text);
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytesPerRoom;
+    private final long maxAgeMillis;
+    private final Map<Integer, RoomLog> logs = new ConcurrentHashMap<>();
+
+    public MessageStore(Path directory, int segmentBytes, long maxBytesPerRoom, long maxAgeMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytesPerRoom = maxBytesPerRoom;
+        this.maxAgeMillis = maxAgeMillis;
+        Files.createDirectories(directory);
+        recover();
+
+        ScheduledExecutorService retentionTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "history-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retentionTimer.scheduleWithFixedDelay(this::enforceRetention,
+                RETENTION_INTERVAL_MS, RETENTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Ids of the rooms that already have history on disk, as of this call.
+    public Set<Integer> getRoomIds() {
+        return Set.copyOf(logs.keySet());
+    }
+
+    public RoomLog open(int roomId) {
+        return logs.computeIfAbsent(roomId, id -> new RoomLog(directory.resolve("room-" + id)));
+    }
+
+    // Deletes a room's history for good, e.g. when the room itself is removed.
+    public void delete(int roomId) throws IOException {
+        RoomLog log = logs.remove(roomId);
+        if (log != null) {
+            log.delete();
+        }
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> rooms = Files.newDirectoryStream(directory, "room-*")) {
+            for (Path roomDirectory : rooms) {
+                int roomId;
+                try {
+                    roomId = Integer.parseInt(roomDirectory.getFileName().toString().substring(5));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                RoomLog log = new RoomLog(roomDirectory);
+                log.recover();
+                logs.put(roomId, log);
+                System.out.println("Recovered " + log.segments.size() + " history segment(s) for room " + roomId
+                        + ", last sequence " + log.lastSequence());
+            }
+        }
+    }
+
+    private void enforceRetention() {
+        for (RoomLog log : logs.values()) {
+            try {
+                log.enforceRetention();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public class RoomLog {
+        private final Path roomDirectory;
+        // Oldest first; the last one is appended to. Guarded by this.
+        private final List<Segment> segments = new ArrayList<>();
+        // Set once the room's history is deleted; guarded by this.
+        private boolean deleted;
+
+        RoomLog(Path roomDirectory) {
+            this.roomDirectory = roomDirectory;
+        }
+
+        private void recover() throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(roomDirectory, "*.log")) {
+                stream.forEach(files::add);
+            }
+            files.sort(Comparator.naturalOrder());
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - 4));
+                Segment segment = new Segment(roomDirectory, base, (int) Files.size(file));
+                segment.scan();
+                segments.add(segment);
+            }
+        }
+
+        private synchronized void delete() throws IOException {
+            deleted = true;
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+            segments.clear();
+            Files.deleteIfExists(roomDirectory);
+        }
+
+        public synchronized long lastSequence() {
+            return segments.isEmpty() ? 0 : segments.get(segments.size() - 1).lastSequence();
+        }
+
+        // The oldest sequence retention has kept, or 0 while the log is empty.
+        public synchronized long firstSequence() {
+            return segments.isEmpty() ? 0 : segments.get(0).base;
+        }
+
+        // Ignored once the history is deleted: a message can still be recorded
+        // by a sender that found the room just before it was removed.
+        public synchronized void append(long sequence, long timeMillis, String text) throws IOException {
+            if (deleted) {
+                return;
+            }
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || !active.canAppend(sequence, payload.length)) {
+                if (active != null) {
+                    active.seal();
+                }
+                Files.createDirectories(roomDirectory);
+                long size = active == null ? FIRST_SEGMENT_BYTES : 2L * active.log.capacity();
+                active = new Segment(roomDirectory, sequence,
+                        Math.max((int) Math.min(size, segmentBytes), HEADER_SIZE + payload.length));
+                segments.add(active);
+                enforceRetention();
+            }
+            active.append(sequence, timeMillis, payload);
+        }
+
+        // Visits up to limit records with sequence > afterSequence, oldest first;
+        // returns the last sequence visited, or afterSequence if there were none.
+        public long replayAfter(long afterSequence, int limit, RecordVisitor visitor) {
+            Segment[] snapshot;
+            long[] ends;
+            synchronized (this) {
+                snapshot = segments.toArray(new Segment[0]);
+                ends = new long[snapshot.length];
+                for (int i = 0; i < snapshot.length; i++) {
+                    ends[i] = snapshot[i].lastSequence();
+                }
+            }
+            // Records up to each segment's end are complete and never change, so
+            // they are read without holding the lock.
+            long sequence = afterSequence;
+            int visited = 0;
+            for (int i = 0; i < snapshot.length && visited < limit; i++) {
+                for (long next = Math.max(sequence + 1, snapshot[i].base); next <= ends[i] && visited < limit; next++) {
+                    snapshot[i].read(next, visitor);
+                    sequence = next;
+                    visited++;
+                }
+            }
+            return sequence;
+        }
+
+        public String read(long sequence) {
+            String[] text = new String[1];
+            replayAfter(sequence - 1, 1, (found, time, value) -> {
+                if (found == sequence) {
+                    text[0] = value;
+                }
+            });
+            return text[0];
+        }
+
+        synchronized void enforceRetention() throws IOException {
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.writePosition;
+            }
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                if (total <= maxBytesPerRoom && oldest.lastTimeMillis >= cutoff) {
+                    break;
+                }
+                segments.remove(0);
+                total -= oldest.writePosition;
+                oldest.delete();
+            }
+        }
+    }
+
+    private static class Segment {
+        private final long base;
+        private final Path logPath;
+        private final Path indexPath;
+        private final MappedByteBuffer log;
+        private final MappedByteBuffer index;
+        private int count;
+        private int writePosition;
+        private long lastTimeMillis;
+
+        Segment(Path roomDirectory, long base, int size) throws IOException {
+            this.base = base;
+            String name = String.format("%020d", base);
+            this.logPath = roomDirectory.resolve(name + ".log");
+            this.indexPath = roomDirectory.resolve(name + ".idx");
+            this.log = map(logPath, size);
+            this.index = map(indexPath, Math.max(1, size / MIN_AVERAGE_RECORD) * 4);
+        }
+
+        private static MappedByteBuffer map(Path path, int size) throws IOException {
+            // The mapping stays valid after the channel is closed.
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+            }
+        }
+
+        long lastSequence() {
+            return base + count - 1;
+        }
+
+        // Rebuilds the index from the log, stopping at the first torn or missing record.
+        void scan() {
+            int position = 0;
+            while (position + HEADER_SIZE <= log.capacity() && (count + 1) * 4 <= index.capacity()) {
+                int length = log.getInt(position);
+                if (length <= 0 || length > log.capacity() - position - HEADER_SIZE
+                        || log.getLong(position + 4) != base + count) {
+                    break;
+                }
+                index.putInt(count * 4, position);
+                lastTimeMillis = log.getLong(position + 12);
+                count++;
+                position += HEADER_SIZE + length;
+            }
+            writePosition = position;
+        }
+
+        boolean canAppend(long sequence, int payloadLength) {
+            return sequence == base + count
+                    && writePosition + HEADER_SIZE + payloadLength <= log.capacity()
+                    && (count + 1) * 4 <= index.capacity();
+        }
+
+        void append(long sequence, long timeMillis, byte[] payload) {
+            int position = writePosition;
+            log.putLong(position + 4, sequence);
+            log.putLong(position + 12, timeMillis);
+            log.put(position + HEADER_SIZE, payload);
+            // Written last so a record is either complete or absent after a crash.
+            log.putInt(position, payload.length);
+            index.putInt(count * 4, position);
+            count++;
+            writePosition = position + HEADER_SIZE + payload.length;
+            lastTimeMillis = timeMillis;
+        }
+
+        void read(long sequence, RecordVisitor visitor) {
+            int position = index.getInt((int) (sequence - base) * 4);
+            int length = log.getInt(position);
+            ByteBuffer text = log.duplicate();
+            text.position(position + HEADER_SIZE).limit(position + HEADER_SIZE + length);
+            visitor.visit(sequence, log.getLong(position + 12), StandardCharsets.UTF_8.decode(text).toString());
+        }
+
+        void seal() {
+            log.force();
+            index.force();
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(logPath);
+            Files.deleteIfExists(indexPath);
+        }
+    }
+}
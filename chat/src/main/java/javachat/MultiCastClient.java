@@ -0,0 +1,624 @@
+// Updated MultiCastClient.java
+package javachat;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.event.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import javachat.ChatClient.Room;
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+
+public class MultiCastClient {
+    // Chat lines kept in the view; older ones are dropped.
+    private static final int MAX_CHAT_LINES = 5000;
+    // Interval at which buffered server events are applied to the UI, about once per frame.
+    private static final int UI_FLUSH_INTERVAL_MS = 16;
+    private static final Executor EDT = SwingUtilities::invokeLater;
+
+    private String userName;
+    private JFrame loginFrame;
+    private JFrame roomFrame;
+    private JFrame chatFrame;
+
+    // Networking, requests and server events; see ChatClient.
+    private ChatClient client;
+
+    // Rows of the room table, in the same order; only touched on the EDT.
+    private List<Room> rooms = new ArrayList<>();
+
+    private JTable roomTable;
+    private DefaultTableModel roomTableModel;
+
+    // Only touched on the EDT.
+    private Room currentRoom;
+    private final ChatHistoryModel chatHistory = new ChatHistoryModel(MAX_CHAT_LINES);
+    private JList<String> chatList;
+    // Members of the current room: a snapshot on entry, then UserJoined/UserLeft deltas.
+    private final DefaultListModel<String> memberListModel = new DefaultListModel<>();
+    private JTextField messageField;
+
+    private volatile MulticastChannel multicastChannel;
+    // Room list version the table is synced to; GetRooms asks only for later changes.
+    private volatile long roomListVersion;
+
+    private CompletableFuture<Void> roomListSync;
+
+    // Server events waiting for the next UI flush. The listener thread only
+    // enqueues; flushUiUpdates applies everything on the EDT in one pass.
+    private final Queue<Runnable> pendingUiUpdates = new ConcurrentLinkedQueue<>();
+    private final Queue<String> pendingChatLines = new ConcurrentLinkedQueue<>();
+    private final javax.swing.Timer uiFlushTimer = new javax.swing.Timer(UI_FLUSH_INTERVAL_MS, e -> flushUiUpdates());
+
+    public static void main(String[] args) {
+        new MultiCastClient().showLoginInterface();
+    }
+
+    private void showLoginInterface() {
+        loginFrame = new JFrame("Login");
+        JTextField nameField = new JTextField(20);
+        JButton loginButton = new JButton("Login");
+        loginFrame.setLayout(new FlowLayout());
+        loginFrame.add(new JLabel("Enter your name:"));
+        loginFrame.add(nameField);
+        loginFrame.add(loginButton);
+        loginFrame.setSize(300, 150);
+        loginFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        loginFrame.setLocationRelativeTo(null);
+        loginFrame.setVisible(true);
+
+        loginButton.addActionListener(e -> {
+            userName = nameField.getText().trim();
+            if (!userName.isEmpty()) {
+                loginButton.setEnabled(false);
+                CompletableFuture.runAsync(this::connectToServer).thenRunAsync(() -> {
+                    loginFrame.dispose();
+                    uiFlushTimer.start();
+                    showRoomInterface();
+                    rejoinLastRoom();
+                }, EDT);
+            } else {
+                JOptionPane.showMessageDialog(loginFrame, "Please enter your name.");
+            }
+        });
+    }
+
+    private void connectToServer() {
+        String serverHost = "172.20.10.2"; // Adjust as necessary
+        int serverPort = 12344;
+
+        try {
+            client = ChatClient.connect(serverHost, serverPort, new ServerEvents());
+        } catch (IOException e) {
+            EDT.execute(() -> {
+                JOptionPane.showMessageDialog(null, "Unable to connect to server.");
+                System.exit(1);
+            });
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Runs on the client's reader thread, so it only queues work for the next UI flush.
+    private class ServerEvents implements ChatClient.Listener {
+        @Override
+        public void onNewRoom(Room room) {
+            addRoom(room);
+        }
+
+        @Override
+        public void onRoomRemoved(int roomId) {
+            removeRoom(roomId);
+        }
+
+        @Override
+        public void onMessage(String line) {
+            appendChat(line);
+        }
+
+        @Override
+        public void onPrivateMessage(String line) {
+            appendChat(line);
+        }
+
+        @Override
+        public void onSystem(String line) {
+            appendChat(line);
+        }
+
+        // Earlier messages replayed from the room's history when we join.
+        @Override
+        public void onHistory(long sequence, long timeMillis, String line) {
+            appendChat(line);
+        }
+
+        @Override
+        public void onMembers(List<String> joined, List<String> left, boolean replace) {
+            updateMembers(joined, left, replace);
+        }
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+            appendChat("System - Lost connection to the server");
+        }
+    }
+
+    private void addRoom(Room room) {
+        pendingUiUpdates.add(() -> {
+            int index = indexOfRoom(room.getId());
+            if (index < 0) {
+                rooms.add(room);
+                roomTableModel.addRow(new Object[]{room.getId(), room.getName(), room.getCreator()});
+            } else {
+                rooms.set(index, room);
+                roomTableModel.setValueAt(room.getName(), index, 1);
+                roomTableModel.setValueAt(room.getCreator(), index, 2);
+            }
+        });
+    }
+
+    private void removeRoom(int id) {
+        pendingUiUpdates.add(() -> {
+            int index = indexOfRoom(id);
+            if (index >= 0) {
+                rooms.remove(index);
+                roomTableModel.removeRow(index);
+            }
+        });
+    }
+
+    private int indexOfRoom(int id) {
+        for (int i = 0; i < rooms.size(); i++) {
+            if (rooms.get(i).getId() == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void updateMembers(List<String> joined, List<String> left, boolean replace) {
+        pendingUiUpdates.add(() -> {
+            if (replace) {
+                memberListModel.clear();
+            }
+            for (String user : left) {
+                memberListModel.removeElement(user);
+            }
+            for (String user : joined) {
+                if (!memberListModel.contains(user)) {
+                    memberListModel.addElement(user);
+                }
+            }
+        });
+    }
+
+    private void appendChat(String message) {
+        pendingChatLines.add(message);
+    }
+
+    // Runs on the EDT once per UI_FLUSH_INTERVAL_MS: applies the room and member
+    // updates in arrival order, then appends all new chat lines as one batch.
+    private void flushUiUpdates() {
+        Runnable update;
+        while ((update = pendingUiUpdates.poll()) != null) {
+            update.run();
+        }
+        if (pendingChatLines.isEmpty()) {
+            return;
+        }
+        boolean atBottom = chatList == null || chatList.getLastVisibleIndex() >= chatHistory.getSize() - 1;
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = pendingChatLines.poll()) != null) {
+            lines.add(line);
+        }
+        chatHistory.appendAll(lines);
+        // Follow new messages unless the user has scrolled back.
+        if (chatList != null && atBottom) {
+            chatList.ensureIndexIsVisible(chatHistory.getSize() - 1);
+        }
+    }
+
+    private void showError(Component parent, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        JOptionPane.showMessageDialog(parent, cause.getMessage());
+    }
+
+    private void showRoomInterface() {
+        roomFrame = new JFrame("Room List - " + userName);
+        roomFrame.setLayout(new BorderLayout());
+
+        // Kept across visits to the room screen and brought up to date incrementally.
+        if (roomTableModel == null) {
+            roomTableModel = new DefaultTableModel(new Object[]{"Room ID", "Room Name", "Creator"}, 0);
+        }
+        roomTable = new JTable(roomTableModel);
+        JScrollPane scrollPane = new JScrollPane(roomTable);
+
+        JButton createRoomButton = new JButton("Create Room");
+        JButton joinRoomButton = new JButton("Join Room");
+
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(createRoomButton);
+        buttonPanel.add(joinRoomButton);
+
+        roomFrame.add(scrollPane, BorderLayout.CENTER);
+        roomFrame.add(buttonPanel, BorderLayout.SOUTH);
+
+        roomFrame.setSize(500, 300);
+        roomFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        roomFrame.setLocationRelativeTo(null);
+        roomFrame.setVisible(true);
+
+        syncRoomList();
+
+        createRoomButton.addActionListener(e -> {
+            String roomName = JOptionPane.showInputDialog(roomFrame, "Enter room name:");
+            if (roomName != null && !roomName.trim().isEmpty()) {
+                enterRoom(createRoom(roomName.trim()).thenComposeAsync(this::joinRoom, EDT));
+            }
+        });
+
+        joinRoomButton.addActionListener(e -> {
+            int selectedRow = roomTable.getSelectedRow();
+            if (selectedRow >= 0) {
+                enterRoom(joinRoom(rooms.get(selectedRow)));
+            } else {
+                JOptionPane.showMessageDialog(roomFrame, "Please select a room to join.");
+            }
+        });
+    }
+
+    // Fetches the rooms created, changed or removed since the last sync, one
+    // page at a time; the table fills in as pages arrive. A sync already in
+    // progress is reused.
+    private CompletableFuture<Void> syncRoomList() {
+        if (roomListSync == null || roomListSync.isDone()) {
+            roomListSync = requestRoomPage();
+        }
+        return roomListSync;
+    }
+
+    private CompletableFuture<Void> requestRoomPage() {
+        return client.getRooms(roomListVersion).thenCompose(page -> {
+            if (page.isReset()) {
+                pendingUiUpdates.add(() -> {
+                    rooms.clear();
+                    roomTableModel.setRowCount(0);
+                });
+            }
+            page.getRooms().forEach(this::addRoom);
+            page.getRemoved().forEach(this::removeRoom);
+            roomListVersion = page.getVersion();
+            return page.hasMore() ? requestRoomPage() : CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private CompletableFuture<Room> createRoom(String roomName) {
+        return client.createRoom(roomName, userName).thenApply(room -> {
+            addRoom(room);
+            return room;
+        });
+    }
+
+    // Completes once the server has confirmed the join and sent the history
+    // replay and member list that follow it.
+    private CompletableFuture<Room> joinRoom(Room room) {
+        currentRoom = room;
+        CompletableFuture<Room> joined = client.joinRoom(room.getName(), userName).thenApply(id -> room);
+        useMulticast(room);
+        return joined.whenCompleteAsync((value, failure) -> {
+            if (failure != null) {
+                currentRoom = null;
+                closeMulticastChannel();
+            }
+        }, EDT);
+    }
+
+    // Back to the room this user was in before the last disconnect or server
+    // restart, if the server has one; otherwise the room screen stays as it is.
+    private void rejoinLastRoom() {
+        roomFrame.setEnabled(false);
+        client.rejoin(userName).whenCompleteAsync((room, failure) -> {
+            if (failure != null) {
+                roomFrame.setEnabled(true);
+            } else {
+                currentRoom = room;
+                useMulticast(room);
+                roomFrame.dispose();
+                showChatInterface();
+            }
+        }, EDT);
+    }
+
+    // Joins the room's group, then asks the server to switch chat to
+    // multicast, so no datagram is sent before we can receive it.
+    private void useMulticast(Room room) {
+        try {
+            MulticastChannel channel = new MulticastChannel(room.getId(), room.getMulticastAddress(), room.getPort());
+            multicastChannel = channel;
+            client.request(Protocol.ClientOp.USE_MULTICAST).whenComplete((replies, failure) -> {
+                Frame enabled = replies == null ? null : replies.stream()
+                        .filter(frame -> frame.op() == Protocol.ServerOp.MULTICAST_ENABLED
+                                && frame.getInt(0) == channel.roomId)
+                        .findFirst().orElse(null);
+                if (enabled != null) {
+                    channel.start(enabled.getLong(3));
+                } else if (multicastChannel == channel) {
+                    closeMulticastChannel();
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Multicast unavailable, staying on TCP: " + e.getMessage());
+        }
+    }
+
+    // Leaves the room screen for the chat screen once the join completes; the
+    // room screen stays disabled, not blocked, while the request is in flight.
+    private void enterRoom(CompletableFuture<Room> joined) {
+        roomFrame.setEnabled(false);
+        joined.whenCompleteAsync((room, failure) -> {
+            if (failure != null) {
+                roomFrame.setEnabled(true);
+                showError(roomFrame, failure);
+            } else {
+                roomFrame.dispose();
+                showChatInterface();
+            }
+        }, EDT);
+    }
+
+    private void closeMulticastChannel() {
+        MulticastChannel channel = multicastChannel;
+        multicastChannel = null;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void showChatInterface() {
+        chatFrame = new JFrame("Chat Room - " + currentRoom.getName() + " - " + userName);
+        chatFrame.setLayout(new BorderLayout());
+
+        // A JList renders only the visible rows; fixed cell sizes keep it from
+        // measuring every line when the history changes.
+        chatList = new JList<>(chatHistory);
+        chatList.setPrototypeCellValue(String.join("", Collections.nCopies(60, "m")));
+        JScrollPane scrollPane = new JScrollPane(chatList);
+
+        messageField = new JTextField();
+        JButton sendButton = new JButton("Send");
+        JButton leaveButton = new JButton("Leave Room");
+
+//        userComboBox = new JComboBox<>();
+//        userComboBox.addItem("All");
+
+        JPanel inputPanel = new JPanel(new BorderLayout());
+//        inputPanel.add(userComboBox, BorderLayout.WEST);
+        inputPanel.add(messageField, BorderLayout.CENTER);
+        inputPanel.add(sendButton, BorderLayout.EAST);
+
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(inputPanel, BorderLayout.CENTER);
+        bottomPanel.add(leaveButton, BorderLayout.SOUTH);
+
+        JList<String> memberList = new JList<>(memberListModel);
+        JScrollPane memberScrollPane = new JScrollPane(memberList);
+        memberScrollPane.setPreferredSize(new Dimension(120, 0));
+
+        chatFrame.add(scrollPane, BorderLayout.CENTER);
+        chatFrame.add(memberScrollPane, BorderLayout.EAST);
+        chatFrame.add(bottomPanel, BorderLayout.SOUTH);
+
+        chatFrame.setSize(500, 400);
+        chatFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        chatFrame.setLocationRelativeTo(null);
+        chatFrame.setVisible(true);
+
+        sendButton.addActionListener(e -> sendMessage());
+        messageField.addActionListener(e -> sendMessage());
+        leaveButton.addActionListener(e -> leaveRoom());
+    }
+
+    private void sendMessage() {
+        String message = messageField.getText().trim();
+        if (!message.isEmpty()) {
+            client.sendMessage(message).exceptionally(failure -> {
+                appendChat("System - " + failure.getCause().getMessage() + "; message not sent");
+                return null;
+            });
+            messageField.setText("");
+        }
+    }
+
+    private void leaveRoom() {
+        if (currentRoom != null) {
+            client.leaveRoom();
+            currentRoom = null;
+        }
+        closeMulticastChannel();
+        pendingUiUpdates.add(memberListModel::clear);
+        pendingChatLines.clear();
+        chatHistory.clear();
+        chatList = null;
+        chatFrame.dispose();
+        showRoomInterface();
+    }
+
+    // Receives room chat from the room's multicast group. Datagrams carry
+    // "<roomId> <sequence> <line>"; they are delivered in sequence order and any
+    // gap is re-requested from the server over the TCP connection.
+    private class MulticastChannel {
+        private final int roomId;
+        private final MulticastSocket socket;
+        private final TreeMap<Long, String> pending = new TreeMap<>();
+        private long expectedSequence = -1;
+        private long requestedUpTo;
+
+        MulticastChannel(int roomId, InetAddress group, int port) throws IOException {
+            this.roomId = roomId;
+            this.socket = new MulticastSocket(port);
+            socket.joinGroup(new InetSocketAddress(group, 0), null);
+            Thread receiver = new Thread(this::receive, "multicast-room-" + roomId);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        private void receive() {
+            byte[] buffer = new byte[65535];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    String[] tokens = new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8).split(" ", 3);
+                    if (tokens.length == 3 && Integer.parseInt(tokens[0]) == roomId) {
+                        onMessage(Long.parseLong(tokens[1]), tokens[2]);
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    if (!socket.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        // Called with the server's next sequence number once it has switched us over.
+        synchronized void start(long firstSequence) {
+            expectedSequence = firstSequence;
+            requestedUpTo = firstSequence - 1;
+            pending.headMap(firstSequence).clear();
+            deliverInOrder();
+        }
+
+        synchronized void onMessage(long sequence, String line) {
+            if ((expectedSequence >= 0 && sequence < expectedSequence) || pending.containsKey(sequence)) {
+                return;
+            }
+            pending.put(sequence, line);
+            deliverInOrder();
+        }
+
+        // The server no longer has these messages; skip over them.
+        synchronized void onUnavailable(long fromSequence, long toSequence) {
+            for (long sequence = Math.max(fromSequence, expectedSequence); sequence <= toSequence; sequence++) {
+                pending.putIfAbsent(sequence, null);
+            }
+            deliverInOrder();
+        }
+
+        private void deliverInOrder() {
+            if (expectedSequence < 0) {
+                return;
+            }
+            while (!pending.isEmpty() && pending.firstKey() == expectedSequence) {
+                String line = pending.pollFirstEntry().getValue();
+                expectedSequence++;
+                if (line != null) {
+                    appendChat(line.substring(Protocol.ServerOp.MESSAGE.keyword().length() + 1));
+                }
+            }
+            if (!pending.isEmpty()) {
+                long gapEnd = pending.firstKey() - 1;
+                if (gapEnd > requestedUpTo) {
+                    client.request(Protocol.ClientOp.RESEND, roomId, Math.max(expectedSequence, requestedUpTo + 1), gapEnd)
+                            .thenAccept(replies -> onResent(replies, gapEnd));
+                    requestedUpTo = gapEnd;
+                }
+            }
+        }
+
+        private void onResent(List<Frame> replies, long requestedTo) {
+            long answeredUpTo = -1;
+            for (Frame frame : replies) {
+                if (frame.op() == Protocol.ServerOp.RESENT && frame.getInt(0) == roomId) {
+                    onMessage(frame.getLong(1), frame.getString(2));
+                    answeredUpTo = Math.max(answeredUpTo, frame.getLong(1));
+                } else if (frame.op() == Protocol.ServerOp.RESEND_UNAVAILABLE && frame.getInt(0) == roomId) {
+                    onUnavailable(frame.getLong(1), frame.getLong(2));
+                    answeredUpTo = Math.max(answeredUpTo, frame.getLong(2));
+                }
+            }
+            if (answeredUpTo >= 0 && answeredUpTo < requestedTo) {
+                resendRest(answeredUpTo);
+            }
+        }
+
+        // The server resends a limited number of messages per request; asks
+        // again for the rest of the gap.
+        private synchronized void resendRest(long answeredUpTo) {
+            if (requestedUpTo > answeredUpTo) {
+                requestedUpTo = answeredUpTo;
+                deliverInOrder();
+            }
+        }
+
+        void close() {
+            socket.close();
+        }
+    }
+
+    // Chat lines as a fixed-capacity ring: appending past capacity drops the
+    // oldest lines, so memory and model updates stay bounded however long the
+    // client runs. Only touched on the EDT.
+    private static class ChatHistoryModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] lines;
+        private int start;
+        private int size;
+
+        ChatHistoryModel(int capacity) {
+            this.lines = new String[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return lines[(start + index) % lines.length];
+        }
+
+        void appendAll(List<String> batch) {
+            int skipped = Math.max(0, batch.size() - lines.length);
+            int added = batch.size() - skipped;
+            int evicted = Math.max(0, size + added - lines.length);
+            if (evicted > 0) {
+                start = (start + evicted) % lines.length;
+                size -= evicted;
+                fireIntervalRemoved(this, 0, evicted - 1);
+            }
+            for (int i = skipped; i < batch.size(); i++) {
+                lines[(start + size) % lines.length] = batch.get(i);
+                size++;
+            }
+            if (added > 0) {
+                fireIntervalAdded(this, size - added, size - 1);
+            }
+        }
+
+        void clear() {
+            if (size > 0) {
+                int removed = size;
+                Arrays.fill(lines, null);
+                start = 0;
+                size = 0;
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,1874 @@
+// Updated MultiCastServer.java
+package javachat;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class MultiCastServer {
+    private static final RoomRegistry roomRegistry = new RoomRegistry();
+    private static final AtomicInteger roomIdCounter = new AtomicInteger(1);
+    // Rooms get their multicast group and UDP port from this range: groups
+    // from groupStart on, ports from basePort on, one pair per room.
+    private static final String GROUP_START = System.getProperty("multicast.groupStart", "230.0.0.1");
+    private static final int GROUP_COUNT = Integer.getInteger("multicast.groupCount", 65536);
+    private static final int BASE_PORT = Integer.getInteger("multicast.basePort", 5001);
+    // The whole range until main finds this node is one of several.
+    private static MulticastAddressPool addressPool = newAddressPool(1, 0);
+    // Rooms nobody has joined or written to for this long are removed; 0 keeps them.
+    private static final long ROOM_IDLE_TTL_SECONDS = Long.getLong("multicast.roomIdleTtlSeconds", 600);
+
+    // A concurrent set rather than a copy-on-write list: with tens of thousands
+    // of connections, copying the whole array on every connect/disconnect dominates.
+    private static Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    // Name -> handler for private-message routing; names are claimed on JoinRoom
+    // and released when the connection closes.
+    private static Map<String, ClientHandler> usersByName = new ConcurrentHashMap<>();
+
+    private static final int SERVER_PORT = Integer.getInteger("multicast.port", 12344);
+    // "thread" (one platform thread per client), "virtual" (one virtual thread
+    // per client, Java 21+) or "nio" (selector event loops)
+    private static final String SERVER_MODE = System.getProperty("multicast.mode", "thread");
+    // Accept queue length; the JDK default of 50 throttles connection bursts.
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("multicast.backlog", 1024);
+    private static final int EVENT_LOOPS = Integer.getInteger("multicast.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+    // "tcp" relays room chat to every member over its connection; "udp" also
+    // publishes it once to the room's multicast group for clients that opt in.
+    private static final String DATA_PLANE = System.getProperty("multicast.dataPlane", "tcp");
+    private static final int MULTICAST_TTL = Integer.getInteger("multicast.ttl", 1);
+    private static final String MULTICAST_INTERFACE = System.getProperty("multicast.interface");
+    private static MulticastPublisher multicastPublisher;
+    // Per-client bound on queued outbound lines and what to do once it is hit:
+    // "disconnect", "dropOldest", or "block" (the sender waits up to the timeout,
+    // then the client is disconnected).
+    private static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("multicast.outboundQueue", 1024);
+    private static final OutboundQueue.Policy SLOW_CONSUMER_POLICY =
+            OutboundQueue.Policy.parse(System.getProperty("multicast.slowConsumerPolicy", "disconnect"));
+    private static final long SLOW_CONSUMER_TIMEOUT_MS = Long.getLong("multicast.slowConsumerTimeoutMs", 1000);
+    // Joins and leaves within this window reach room members as one batched
+    // UserJoined/UserLeft update; 0 sends each change immediately.
+    private static final long MEMBER_UPDATE_DELAY_MS = Long.getLong("multicast.memberUpdateDelayMs", 50);
+    // Room chat history on memory-mapped segment files; an empty directory
+    // disables it. Retention is per room, by total size and by message age.
+    private static final String HISTORY_DIR = System.getProperty("multicast.historyDir", "history");
+    private static final int HISTORY_SEGMENT_BYTES = Integer.getInteger("multicast.historySegmentBytes", 8 * 1024 * 1024);
+    private static final long HISTORY_MAX_BYTES = Long.getLong("multicast.historyMaxBytes", 256L * 1024 * 1024);
+    private static final long HISTORY_MAX_AGE_HOURS = Long.getLong("multicast.historyMaxAgeHours", 24 * 7);
+    // Most rooms or removals sent in reply to one "GetRooms since" request.
+    private static final int ROOM_PAGE_SIZE = Integer.getInteger("multicast.roomPageSize", 500);
+    // Messages replayed to a client when it joins, and the most one Replay returns.
+    private static final int REPLAY_ON_JOIN = Integer.getInteger("multicast.replayOnJoin", 50);
+    private static final int REPLAY_LIMIT = Integer.getInteger("multicast.replayLimit", 500);
+    // Every frame the server sends must fit in Protocol.MAX_FRAME_LENGTH: chat
+    // text is refused when its prefix and the numbers framed with it (opcode,
+    // room id, sequence, time, lengths, "Message ") would push it over, and user
+    // names are short enough that member lists can always be split to fit.
+    private static final int MESSAGE_FRAME_OVERHEAD = 64;
+    private static final int MAX_USER_NAME_LENGTH = 256;
+    private static MessageStore messageStore;
+    // Fast restart: the rooms this node owns, their ids and multicast groups,
+    // and each user's last room, kept in stateDir as a periodic snapshot plus
+    // a journal of the changes since (an empty directory disables it).
+    private static final String STATE_DIR = System.getProperty("multicast.stateDir", "state");
+    private static final long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("multicast.snapshotIntervalSeconds", 60);
+    private static StateStore stateStore;
+    // User name -> the room that user was last in, for Rejoin.
+    private static final Map<String, String> lastRoomByUser = new ConcurrentHashMap<>();
+    // Local HTTP port serving the Stats report at /stats (0 disables it), and
+    // how many of the busiest rooms the report lists.
+    private static final int STATS_PORT = Integer.getInteger("multicast.statsPort", 0);
+    private static final int STATS_ROOMS = Integer.getInteger("multicast.statsRooms", 20);
+    // Frames queued for all clients, across every outbound queue.
+    private static final LongAdder outboundBacklog = new LongAdder();
+    private static final ServerMetrics metrics = new ServerMetrics(
+            () -> clientHandlers.size(), outboundBacklog::sum, new RoomStats(), STATS_ROOMS);
+    // Admission control: token-bucket rates (per second) and bursts for every
+    // request of a connection, for the messages of a user and for the chat of
+    // a room, and the total queued outbound frames above which messages are
+    // refused. A rate or watermark of 0 turns that limit off.
+    private static final AdmissionControl admission = new AdmissionControl(
+            Double.parseDouble(System.getProperty("multicast.connectionRate", "100")),
+            Integer.getInteger("multicast.connectionBurst", 200),
+            Double.parseDouble(System.getProperty("multicast.userRate", "20")),
+            Integer.getInteger("multicast.userBurst", 40),
+            Double.parseDouble(System.getProperty("multicast.roomRate", "500")),
+            Integer.getInteger("multicast.roomBurst", 1000),
+            Long.getLong("multicast.backlogWatermark", 1_000_000),
+            outboundBacklog::sum);
+    // Whether clients may ask for a deflate-compressed stream, and the fewest
+    // recipients for which a broadcast is compressed once and shared by all of
+    // them instead of by each connection's own deflater (0 never shares).
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("multicast.compression", "true"));
+    private static final int SHARED_COMPRESSION_MIN = Integer.getInteger("multicast.sharedCompressionMin", 8);
+    // Dead connection reaping, checked on one shared timer wheel. A client
+    // silent for readIdleSeconds is sent a Ping; if it has used Ping/Pong before
+    // and sends nothing within pingTimeoutSeconds, it is disconnected. Clients
+    // that never answer pings (older builds) are only pinged. Output that gets
+    // no bytes into the socket for writeIdleSeconds also disconnects. 0 turns
+    // a check off.
+    private static final long READ_IDLE_NANOS =
+            TimeUnit.SECONDS.toNanos(Long.getLong("multicast.readIdleSeconds", 30));
+    private static final long PING_TIMEOUT_NANOS =
+            TimeUnit.SECONDS.toNanos(Long.getLong("multicast.pingTimeoutSeconds", 10));
+    private static final long WRITE_IDLE_NANOS =
+            TimeUnit.SECONDS.toNanos(Long.getLong("multicast.writeIdleSeconds", 15));
+    private static final TimerWheel idleTimer = new TimerWheel("idle-checks", 100, 512);
+    // Cluster membership: this node's id, and "id=host:port,..." naming every
+    // node (this one included) with the port it takes peer links on. The same
+    // list goes to every node; an empty node id runs a standalone server.
+    private static final String NODE_ID = System.getProperty("multicast.nodeId", "");
+    private static final String CLUSTER_NODES = System.getProperty("multicast.clusterNodes", "");
+    // Address the peer port listens on; empty uses this node's host from the list.
+    private static final String CLUSTER_BIND = System.getProperty("multicast.clusterBindAddress", "");
+    private static Cluster cluster;
+    // Users connected to other nodes: name -> node.
+    private static final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    // Rooms a local client asked another node to create: name -> that request.
+    private static final Map<String, PendingCreate> pendingCreates = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService memberUpdateTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "member-updates");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Event log: minimum level (debug/info/warn/off), ring buffer size, and
+    // "keep one in N" sampling for chat, private and system messages.
+    private static final EventLogger eventLogger = EventLogger.toStandardOut(
+            EventLogger.Level.valueOf(System.getProperty("multicast.logLevel", "info").toUpperCase()),
+            Integer.getInteger("multicast.logBuffer", 65536),
+            Integer.getInteger("multicast.logSampleRate", 1));
+
+    public static void main(String[] args) {
+        try {
+            if (!NODE_ID.isEmpty()) {
+                cluster = new Cluster(NODE_ID, CLUSTER_NODES, CLUSTER_BIND);
+            }
+            if (cluster != null) {
+                addressPool = newAddressPool(cluster.getNodeCount(), cluster.getNodeIndex());
+            }
+            if (DATA_PLANE.equals("udp")) {
+                multicastPublisher = new MulticastPublisher(MULTICAST_TTL, MULTICAST_INTERFACE);
+                System.out.println("Room chat is also published over UDP multicast");
+            }
+            if (!HISTORY_DIR.isEmpty()) {
+                openMessageStore();
+            }
+            if (!STATE_DIR.isEmpty()) {
+                restoreState();
+            }
+            registerMetrics();
+            memberUpdateTimer.scheduleWithFixedDelay(() -> admission.evictIdleUsers(usersByName::containsKey),
+                    1, 1, TimeUnit.MINUTES);
+            if (ROOM_IDLE_TTL_SECONDS > 0) {
+                long period = Math.max(1, Math.min(60, ROOM_IDLE_TTL_SECONDS / 4));
+                memberUpdateTimer.scheduleWithFixedDelay(MultiCastServer::removeIdleRooms, period, period, TimeUnit.SECONDS);
+            }
+            if (cluster != null) {
+                cluster.start(new ClusterNode());
+            }
+            if (SERVER_MODE.equals("nio")) {
+                runNioServer();
+            } else if (SERVER_MODE.equals("virtual")) {
+                Executor executor = newVirtualThreadExecutor();
+                runBlockingServer(executor, executor);
+            } else {
+                runBlockingServer(command -> new Thread(command).start(), Executors.newCachedThreadPool());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static MulticastAddressPool newAddressPool(int stride, int offset) {
+        try {
+            return new MulticastAddressPool(GROUP_START, GROUP_COUNT, BASE_PORT, stride, offset);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid multicast.groupStart " + GROUP_START, e);
+        }
+    }
+
+    private static void openMessageStore() throws IOException {
+        messageStore = new MessageStore(Paths.get(HISTORY_DIR), HISTORY_SEGMENT_BYTES, HISTORY_MAX_BYTES,
+                TimeUnit.HOURS.toMillis(HISTORY_MAX_AGE_HOURS));
+        // New rooms must not append to the history of a room from an earlier run.
+        int nodes = cluster != null ? cluster.getNodeCount() : 1;
+        for (int roomId : messageStore.getRoomIds()) {
+            roomIdCounter.accumulateAndGet((roomId - 1) / nodes + 2, Math::max);
+        }
+    }
+
+    // Brings back the rooms this node owned when it stopped, with the same ids
+    // and multicast groups, then snapshots the state every interval.
+    private static void restoreState() throws IOException {
+        long start = System.nanoTime();
+        stateStore = new StateStore(Paths.get(STATE_DIR));
+        StateStore.State state = stateStore.load();
+        // The cluster may have changed since; rooms now owned elsewhere are left to their owner.
+        List<StateStore.RoomRecord> records = new ArrayList<>();
+        for (StateStore.RoomRecord record : state.getRooms()) {
+            if (cluster == null || cluster.isLocal(cluster.ownerOf(record.getName()))) {
+                records.add(record);
+            }
+        }
+        int[] slots = new int[records.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = records.get(i).getSlot();
+        }
+        MulticastAddressPool.Lease[] leases = addressPool.restore(slots);
+        int nodes = cluster != null ? cluster.getNodeCount() : 1;
+        roomIdCounter.accumulateAndGet(state.getRoomIdCounter(), Math::max);
+        for (int i = 0; i < leases.length; i++) {
+            StateStore.RoomRecord record = records.get(i);
+            MulticastAddressPool.Lease lease = leases[i] != null ? leases[i] : addressPool.acquire();
+            if (lease == null) {
+                System.out.println("No multicast group left for restored room " + record.getName());
+                continue;
+            }
+            Room room = new Room(record.getId(), record.getName(), record.getCreator(), lease.getGroup(),
+                    lease.getPort(), messageStore != null ? messageStore.open(record.getId()) : null, null);
+            room.lease = lease;
+            if (!roomRegistry.add(room)) {
+                addressPool.release(lease);
+                continue;
+            }
+            roomIdCounter.accumulateAndGet((record.getId() - 1) / nodes + 2, Math::max);
+        }
+        roomRegistry.restoreVersion(state.getRegistryVersion());
+        lastRoomByUser.putAll(state.getLastRooms());
+        System.out.println("Restored " + roomRegistry.getRooms().size() + " rooms and "
+                + lastRoomByUser.size() + " users' last rooms (" + state.getJournalRecords()
+                + " journal records) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        snapshotState();
+        if (SNAPSHOT_INTERVAL_SECONDS > 0) {
+            ScheduledExecutorService snapshotTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "state-snapshots");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotTimer.scheduleWithFixedDelay(MultiCastServer::snapshotState,
+                    SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void snapshotState() {
+        long start = System.nanoTime();
+        try {
+            if (stateStore.snapshot(new RoomState())) {
+                metrics.recordSnapshot(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write a state snapshot: " + e.getMessage());
+        }
+    }
+
+    // Room ids are numbered per node in a cluster: node i of n hands out i+1,
+    // i+1+n, i+1+2n, ..., so no two nodes pick the same one. Removed rooms'
+    // ids are not handed out again while the server runs.
+    private static int nextRoomId() {
+        int nodes = cluster != null ? cluster.getNodeCount() : 1;
+        int index = cluster != null ? cluster.getNodeIndex() : 0;
+        return (roomIdCounter.getAndIncrement() - 1) * nodes + index + 1;
+    }
+
+    // Creates a room owned by this node and announces it to the other nodes;
+    // returns null if the name is taken.
+    private static Room createOwnedRoom(String roomName, String creatorName) throws IOException {
+        if (roomRegistry.getByName(roomName) != null) {
+            return null;
+        }
+        MulticastAddressPool.Lease lease = addressPool.acquire();
+        if (lease == null) {
+            throw new IOException("all " + addressPool.getCapacity() + " multicast groups are in use");
+        }
+        int roomId = nextRoomId();
+        Room room = new Room(roomId, roomName, creatorName, lease.getGroup(), lease.getPort(),
+                messageStore != null ? messageStore.open(roomId) : null, null);
+        room.lease = lease;
+        if (!roomRegistry.add(room)) {
+            addressPool.release(lease);
+            if (messageStore != null) {
+                messageStore.delete(roomId);
+            }
+            return null;
+        }
+        if (stateStore != null) {
+            stateStore.roomAdded(new StateStore.RoomRecord(roomId, roomName, creatorName, lease.getSlot()),
+                    roomRegistry.getVersion());
+        }
+        if (cluster != null) {
+            cluster.sendToAll(roomFrame(Protocol.PeerOp.ROOM_ANNOUNCE, room));
+        }
+        return room;
+    }
+
+    // Removes owned rooms that have had no members on any node and no messages
+    // for the idle TTL, freeing their multicast group and history.
+    private static void removeIdleRooms() {
+        long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ROOM_IDLE_TTL_SECONDS);
+        for (Room room : roomRegistry.getRooms()) {
+            if (room.isOwned() && room.markRemovedIfIdle(idleSince)) {
+                removeRoom(room);
+                addressPool.release(room.lease);
+                if (messageStore != null) {
+                    try {
+                        messageStore.delete(room.getId());
+                    } catch (IOException e) {
+                        System.out.println("Could not delete history of room " + room.getId() + ": " + e.getMessage());
+                    }
+                }
+                if (cluster != null) {
+                    cluster.sendToAll(Frame.of(Protocol.PeerOp.ROOM_REMOVED, room.getId()));
+                }
+                eventLogger.log(EventLogger.Type.ROOM_REMOVED, null, null, room.getName(), null);
+            }
+        }
+    }
+
+    // Drops the room from the directory and tells the local clients that know
+    // RoomRemoved; the rest see the room gone from their next GetRooms.
+    private static void removeRoom(Room room) {
+        roomRegistry.remove(room);
+        if (room.isOwned()) {
+            lastRoomByUser.values().removeIf(room.getName()::equals);
+            if (stateStore != null) {
+                stateStore.roomRemoved(room.getId(), room.getName(), roomRegistry.getVersion());
+            }
+        }
+        Frame frame = broadcastFrame(clientHandlers.size(), Protocol.ServerOp.ROOM_REMOVED, room.getId());
+        for (ClientHandler clientHandler : clientHandlers) {
+            if (clientHandler.knowsRoomRemoved) {
+                clientHandler.out.send(frame);
+            }
+        }
+    }
+
+    private static Frame roomFrame(Protocol.Op op, Room room) {
+        return Frame.of(op, roomFields(room));
+    }
+
+    private static Object[] roomFields(Room room) {
+        return new Object[] {room.getId(), room.getName(), room.getCreator(),
+                room.getMulticastAddress().getHostAddress(), room.getPort()};
+    }
+
+    // A frame for many recipients; see DeflateOutput for how shared frames are compressed.
+    static Frame broadcastFrame(int recipients, Protocol.Op op, Object... fields) {
+        return SHARED_COMPRESSION_MIN > 0 && recipients >= SHARED_COMPRESSION_MIN
+                ? Frame.shared(op, fields) : Frame.of(op, fields);
+    }
+
+    // Tells every local client except the given one (may be null) about a new room.
+    private static void broadcastNewRoom(Room room, ClientHandler except) {
+        Frame frame = broadcastFrame(clientHandlers.size(), Protocol.ServerOp.NEW_ROOM, roomFields(room));
+        for (ClientHandler clientHandler : clientHandlers) {
+            if (clientHandler != except) {
+                clientHandler.out.send(frame);
+            }
+        }
+    }
+
+    // Numbers, stores and delivers a chat message in a room owned by this node,
+    // then relays it to the other nodes with members in the room.
+    private static void deliverRoomMessage(Room room, String text) {
+        long sequence = room.recordMessage(text);
+        fanOutRoomMessage(room, sequence, text);
+        for (String node : room.interestedNodes) {
+            cluster.send(node, Frame.of(Protocol.PeerOp.ROOM_MESSAGE, room.getId(), sequence, text));
+        }
+    }
+
+    // Hands a numbered chat message to this node's members of the room.
+    private static void fanOutRoomMessage(Room room, long sequence, String text) {
+        if (multicastPublisher != null) {
+            String line = Protocol.ServerOp.MESSAGE.keyword() + " " + text;
+            multicastPublisher.publish(room.getMulticastAddress(), room.getPort(), room.getId(), sequence, line);
+        }
+        Frame frame = broadcastFrame(room.getSubscribers().size(), Protocol.ServerOp.MESSAGE, text);
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ClientHandler clientHandler : room.getSubscribers()) {
+            long multicastFrom = clientHandler.multicastFrom;
+            if (multicastFrom == 0 || sequence < multicastFrom) {
+                clientHandler.out.send(frame);
+                recipients++;
+            }
+        }
+        metrics.recordRoomMessage(recipients, System.nanoTime() - start);
+    }
+
+    private static void deliverSystemMessage(Room room, String message) {
+        fanOutSystemMessage(room, message);
+        for (String node : room.interestedNodes) {
+            cluster.send(node, Frame.of(Protocol.PeerOp.ROOM_SYSTEM, room.getId(), message));
+        }
+    }
+
+    private static void fanOutSystemMessage(Room room, String message) {
+        Frame frame = broadcastFrame(room.getSubscribers().size(), Protocol.ServerOp.SYSTEM, message);
+        for (ClientHandler clientHandler : room.getSubscribers()) {
+            clientHandler.out.send(frame);
+        }
+    }
+
+    private static void registerMetrics() throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("javachat:type=ServerMetrics"));
+        } catch (JMException e) {
+            System.out.println("Could not register the metrics MBean: " + e.getMessage());
+        }
+        if (STATS_PORT > 0) {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), STATS_PORT), 0);
+            http.createContext("/stats", exchange -> {
+                StringBuilder body = new StringBuilder();
+                metrics.writeStats((name, value) -> body.append(name).append(' ').append(value).append('\n'));
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream response = exchange.getResponseBody()) {
+                    response.write(bytes);
+                }
+            });
+            http.start();
+            System.out.println("Stats are served at http://localhost:" + STATS_PORT + "/stats");
+        }
+    }
+
+    private static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, SLOW_CONSUMER_POLICY, SLOW_CONSUMER_TIMEOUT_MS,
+                outboundBacklog);
+    }
+
+    private static void runBlockingServer(Executor executor, Executor writerExecutor) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT, ACCEPT_BACKLOG)) {
+            System.out.println("MultiCast Server is running on port " + SERVER_PORT + " in " + SERVER_MODE + " mode");
+
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                metrics.recordAccept();
+                ClientHandler clientHandler = new ClientHandler(
+                        new SocketConnection(clientSocket, newOutboundQueue(), writerExecutor, metrics));
+                clientHandlers.add(clientHandler);
+                clientHandler.startIdleChecks();
+                executor.execute(clientHandler);
+            }
+        }
+    }
+
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively so the server still compiles and runs on Java 17.
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads require Java 21+, falling back to platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static void runNioServer() throws IOException {
+        if (SLOW_CONSUMER_POLICY == OutboundQueue.Policy.BLOCK) {
+            // Requests are handled on the event loops, which never wait for queue space.
+            System.out.println("The block slow consumer policy acts as disconnect in nio mode:"
+                    + " a client whose queue is full when an event loop sends to it is disconnected");
+        }
+        NioServer server = new NioServer(SERVER_PORT, ACCEPT_BACKLOG, EVENT_LOOPS, metrics,
+                MultiCastServer::newOutboundQueue, connection -> {
+            metrics.recordAccept();
+            ClientHandler clientHandler = new ClientHandler(connection);
+            clientHandlers.add(clientHandler);
+            clientHandler.startIdleChecks();
+            return clientHandler;
+        });
+        System.out.println("MultiCast Server is running on port " + SERVER_PORT
+                + " with " + EVENT_LOOPS + " NIO event loops");
+        server.run();
+    }
+
+    // Request dispatch: one entry per client opcode, shared by both wire formats.
+    private static final Map<Protocol.ClientOp, BiConsumer<ClientHandler, Frame>> REQUEST_HANDLERS =
+            new EnumMap<>(Protocol.ClientOp.class);
+
+    static {
+        REQUEST_HANDLERS.put(Protocol.ClientOp.GET_ROOMS, (handler, request) -> {
+            if (request.fieldCount() == 0) {
+                handler.sendRoomList();
+            } else if (request.fieldCount() == 2 && request.getString(0).equals("since")) {
+                handler.sendRoomChanges(request.getLong(1));
+            } else {
+                handler.out.send(Frame.of(Protocol.ServerOp.UNKNOWN_COMMAND));
+            }
+        });
+        REQUEST_HANDLERS.put(Protocol.ClientOp.CREATE_ROOM,
+                (handler, request) -> handler.createRoom(request.getString(0), request.getString(1)));
+        REQUEST_HANDLERS.put(Protocol.ClientOp.JOIN_ROOM, (handler, request) -> {
+            if (handler.claimUserName(request.getString(1))) {
+                handler.joinRoom(request.getString(0));
+            }
+        });
+        REQUEST_HANDLERS.put(Protocol.ClientOp.LEAVE_ROOM, (handler, request) -> {
+            handler.leaveRoom();
+            handler.forgetLastRoom();
+        });
+        REQUEST_HANDLERS.put(Protocol.ClientOp.REJOIN, (handler, request) -> {
+            if (handler.claimUserName(request.getString(0))) {
+                handler.rejoinRoom();
+            }
+        });
+        REQUEST_HANDLERS.put(Protocol.ClientOp.CLIENT_QUEUES, (handler, request) -> handler.sendClientQueues());
+        REQUEST_HANDLERS.put(Protocol.ClientOp.STATS, (handler, request) -> handler.sendStats());
+        REQUEST_HANDLERS.put(Protocol.ClientOp.USE_MULTICAST, (handler, request) -> handler.enableMulticast());
+        REQUEST_HANDLERS.put(Protocol.ClientOp.RESEND, (handler, request) ->
+                handler.resendMessages(request.getInt(0), request.getLong(1), request.getLong(2)));
+        REQUEST_HANDLERS.put(Protocol.ClientOp.SEND_MESSAGE, (handler, request) -> {
+            String recipient = request.getString(0);
+            if (!handler.fitsInFrame(request.getString(1))) {
+                handler.out.send(Frame.of(Protocol.ServerOp.ERROR, "Error: Message too long."));
+            } else if (recipient.equals("All")) {
+                handler.broadcastMessageToRoom(request.getString(1));
+            } else {
+                handler.sendPrivateMessage(recipient, request.getString(1));
+            }
+        });
+        REQUEST_HANDLERS.put(Protocol.ClientOp.PROTOCOL, (handler, request) -> handler.acceptProtocol(request));
+        REQUEST_HANDLERS.put(Protocol.ClientOp.COMPRESS, (handler, request) -> handler.acceptCompression(request));
+        REQUEST_HANDLERS.put(Protocol.ClientOp.PING, (handler, request) -> {
+            handler.answersPings = true;
+            handler.out.send(Frame.of(Protocol.ServerOp.PONG, request.getLong(0)));
+        });
+        // Any bytes from the client count as the answer; a Pong marks it as one that replies.
+        REQUEST_HANDLERS.put(Protocol.ClientOp.PONG, (handler, request) -> handler.answersPings = true);
+        REQUEST_HANDLERS.put(Protocol.ClientOp.REPLAY,
+                (handler, request) -> handler.replayHistory(request.getString(0), request.getLong(1)));
+    }
+
+    static class ClientHandler implements Runnable, NioServer.FrameHandler {
+        private static final long NO_TAG = -1;
+        // Holds the place of an unknown or malformed (null) request in
+        // heldRequests, which cannot hold null.
+        private static final Frame UNKNOWN_REQUEST = Frame.of(Protocol.ClientOp.PONG, 0);
+
+        private SocketConnection socketConnection;
+        private ClientConnection out;
+        // Read by other handlers' threads while they fan out to this client.
+        private volatile Room currentRoom;
+        private volatile String userName;
+        // Once the client has joined its room's multicast group, the first
+        // sequence it takes by datagram instead of over this connection; 0
+        // before that. Set under the room's messageLock.
+        private volatile long multicastFrom;
+        private final TokenBucket requestBucket = admission.newConnectionBucket();
+        // Heartbeat state, shared by the reader and the timer wheel.
+        private volatile boolean answersPings;
+        private volatile long pingSentNanos;
+        private volatile boolean closed;
+        // Set once the client has used binary frames, Tag or "GetRooms since",
+        // none of which the original client knows. That client reads any line
+        // starting with "Room" as a room row, so it must never get RoomRemoved.
+        private volatile boolean knowsRoomRemoved;
+        // Requests are handled one at a time and in order, so replies come
+        // back in request order. One answered by another node (a CreateRoom
+        // the owner has to confirm) leaves the connection busy until the
+        // answer arrives; requests read meanwhile are held, then handled by
+        // the thread that delivers the answer. Guarded by this.
+        private final Queue<Frame> heldRequests = new ArrayDeque<>();
+        private boolean busy;
+        private boolean parked;
+        private boolean answeredEarly;
+        // Only touched by the thread handling requests. A Tag sets nextTag for
+        // the request after it; requestTag is the tag of the request being
+        // handled, and a handler that answers later takes it and sets deferred.
+        private long nextTag = NO_TAG;
+        private long requestTag = NO_TAG;
+        private boolean deferred;
+
+        public ClientHandler(SocketConnection connection) {
+            this.socketConnection = connection;
+            this.out = connection;
+        }
+
+        public ClientHandler(ClientConnection connection) {
+            this.out = connection;
+        }
+
+        public void run() {
+            try {
+                while (socketConnection.read(this::onFrame)) {
+                    // Requests are handled as they are decoded.
+                }
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                onClose();
+                out.close();
+            }
+        }
+
+        @Override
+        public void onFrame(Frame request) {
+            synchronized (this) {
+                if (busy) {
+                    heldRequests.add(request != null ? request : UNKNOWN_REQUEST);
+                    return;
+                }
+                busy = true;
+            }
+            handle(request);
+        }
+
+        // Handles a request, then any held behind it, until none are left or
+        // one is answered later.
+        private void handle(Frame request) {
+            while (true) {
+                deferred = false;
+                if (request != null && request.op() == Protocol.ClientOp.TAG) {
+                    knowsRoomRemoved = true;
+                    nextTag = request.getLong(0);
+                } else {
+                    requestTag = nextTag;
+                    nextTag = NO_TAG;
+                    dispatch(request);
+                    sendDone(requestTag);
+                    requestTag = NO_TAG;
+                }
+                synchronized (this) {
+                    if (deferred && !answeredEarly) {
+                        parked = true;
+                        return;
+                    }
+                    answeredEarly = false;
+                    request = heldRequests.poll();
+                    if (request == null) {
+                        busy = false;
+                        return;
+                    }
+                }
+                if (request == UNKNOWN_REQUEST) {
+                    request = null;
+                }
+            }
+        }
+
+        // Called once a deferred request has been answered.
+        void resume() {
+            Frame request;
+            synchronized (this) {
+                if (!parked) {
+                    // Its handler has not finished yet and carries on itself.
+                    answeredEarly = true;
+                    return;
+                }
+                parked = false;
+                request = heldRequests.poll();
+                if (request == null) {
+                    busy = false;
+                    return;
+                }
+            }
+            handle(request != UNKNOWN_REQUEST ? request : null);
+        }
+
+        private void dispatch(Frame request) {
+            if (!admit(request)) {
+                return;
+            }
+            BiConsumer<ClientHandler, Frame> handler =
+                    request != null ? REQUEST_HANDLERS.get((Protocol.ClientOp) request.op()) : null;
+            if (handler != null) {
+                long start = System.nanoTime();
+                handler.accept(this, request);
+                metrics.recordCommand((Protocol.ClientOp) request.op(), System.nanoTime() - start);
+            } else {
+                metrics.recordUnknownCommand();
+                out.send(Frame.of(Protocol.ServerOp.UNKNOWN_COMMAND));
+            }
+        }
+
+        void sendDone(long tag) {
+            if (tag != NO_TAG) {
+                out.send(Frame.of(Protocol.ServerOp.DONE, tag));
+            }
+        }
+
+        // Runs before dispatch, so a refused request costs no fan-out, history
+        // write or log line.
+        private boolean admit(Frame request) {
+            AdmissionControl.Rejection rejection = admission.admitRequest(requestBucket);
+            if (rejection == null && request != null && request.op() == Protocol.ClientOp.SEND_MESSAGE) {
+                Room room = currentRoom;
+                boolean toRoom = request.getString(0).equals("All");
+                rejection = admission.admitMessage(userName, toRoom && room != null ? room.admissionBucket : null);
+            }
+            if (rejection == null) {
+                return true;
+            }
+            metrics.recordShed(rejection.scope());
+            out.send(Frame.of(Protocol.ServerOp.RATE_LIMITED, rejection.scope().keyword(), rejection.retryAfterMillis()));
+            return false;
+        }
+
+        @Override
+        public void onClose() {
+            closed = true;
+            clientHandlers.remove(this);
+            leaveRoom();
+            if (userName != null) {
+                releaseUserName();
+            }
+        }
+
+        void startIdleChecks() {
+            if (READ_IDLE_NANOS > 0 || WRITE_IDLE_NANOS > 0) {
+                idleTimer.schedule(this::checkIdle, Math.min(nonZero(READ_IDLE_NANOS), nonZero(WRITE_IDLE_NANOS)),
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+
+        // Runs on the timer wheel and reschedules itself for the next deadline
+        // until the connection is closed.
+        private void checkIdle() {
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            long delay = Long.MAX_VALUE;
+            if (WRITE_IDLE_NANOS > 0) {
+                long stalled = out.getWriteStallNanos(now);
+                if (stalled >= WRITE_IDLE_NANOS) {
+                    reap("no output written for " + TimeUnit.NANOSECONDS.toSeconds(stalled) + " s");
+                    return;
+                }
+                delay = WRITE_IDLE_NANOS - stalled;
+            }
+            if (READ_IDLE_NANOS > 0) {
+                long lastRead = out.getLastReadNanos();
+                long sent = pingSentNanos;
+                if (sent != 0 && lastRead - sent >= 0) {
+                    sent = pingSentNanos = 0;
+                }
+                if (sent == 0) {
+                    long silent = now - lastRead;
+                    if (silent >= READ_IDLE_NANOS) {
+                        pingSentNanos = now;
+                        // The wheel is shared by every connection, so it must not
+                        // wait on this one's queue; a full one is disconnected.
+                        out.sendWithoutBlocking(Frame.of(Protocol.ServerOp.PING, System.currentTimeMillis()));
+                        delay = Math.min(delay, PING_TIMEOUT_NANOS);
+                    } else {
+                        delay = Math.min(delay, READ_IDLE_NANOS - silent);
+                    }
+                } else if (now - sent >= PING_TIMEOUT_NANOS) {
+                    if (answersPings) {
+                        reap("no reply to ping");
+                        return;
+                    }
+                    pingSentNanos = 0;
+                    delay = Math.min(delay, READ_IDLE_NANOS);
+                } else {
+                    delay = Math.min(delay, PING_TIMEOUT_NANOS - (now - sent));
+                }
+            }
+            idleTimer.schedule(this::checkIdle, delay, TimeUnit.NANOSECONDS);
+        }
+
+        // Closing the transport wakes its reader (or runs on its event loop),
+        // which then takes the client out of its room as for any disconnect.
+        private void reap(String reason) {
+            System.out.println("Disconnecting " + out.getRemoteAddress() + ": " + reason);
+            metrics.recordReaped();
+            out.close();
+        }
+
+        private static long nonZero(long nanos) {
+            return nanos > 0 ? nanos : Long.MAX_VALUE;
+        }
+
+        private boolean claimUserName(String name) {
+            // Binary clients can send any string; keep names printable in the text protocol.
+            if (name.isEmpty() || name.length() > MAX_USER_NAME_LENGTH
+                    || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+                out.send(Frame.of(Protocol.ServerOp.ERROR, "Error: Invalid user name."));
+                return false;
+            }
+            if (name.equals(userName)) {
+                return true;
+            }
+            // Names held on other nodes are taken too. Two nodes can still hand out
+            // the same name before hearing of each other's claim; each then routes
+            // private messages for it to its own user.
+            if (remoteUsers.containsKey(name)) {
+                out.send(Frame.of(Protocol.ServerOp.USER_NAME_TAKEN, name));
+                return false;
+            }
+            ClientHandler owner = usersByName.putIfAbsent(name, this);
+            if (owner != null && owner != this) {
+                out.send(Frame.of(Protocol.ServerOp.USER_NAME_TAKEN, name));
+                return false;
+            }
+            if (userName != null) {
+                releaseUserName();
+            }
+            this.userName = name;
+            if (cluster != null) {
+                cluster.sendToAll(Frame.of(Protocol.PeerOp.USER_ONLINE, name));
+            }
+            return true;
+        }
+
+        private void releaseUserName() {
+            if (usersByName.remove(userName, this) && cluster != null) {
+                cluster.sendToAll(Frame.of(Protocol.PeerOp.USER_OFFLINE, userName));
+            }
+        }
+
+        private void sendRoomList() {
+            for (Room room : roomRegistry.getRooms()) {
+                out.send(roomFrame(Protocol.ServerOp.ROOM, room));
+            }
+            out.send(Frame.of(Protocol.ServerOp.END_OF_ROOM_LIST));
+        }
+
+        // Sends the rooms created or changed and the ids of rooms removed after the
+        // given version, oldest change first, at most ROOM_PAGE_SIZE per request.
+        private void sendRoomChanges(long sinceVersion) {
+            knowsRoomRemoved = true;
+            long since = sinceVersion;
+            if (since < roomRegistry.getCompactedVersion() || since > roomRegistry.getVersion()) {
+                out.send(Frame.of(Protocol.ServerOp.ROOM_LIST_RESET));
+                since = 0;
+            }
+            long reached = since;
+            int sent = 0;
+            boolean more = false;
+            for (Map.Entry<Long, Object> change : roomRegistry.getChangesSince(since).entrySet()) {
+                if (sent == ROOM_PAGE_SIZE) {
+                    more = true;
+                    break;
+                }
+                if (change.getValue() instanceof Room) {
+                    out.send(roomFrame(Protocol.ServerOp.ROOM, (Room) change.getValue()));
+                    sent++;
+                } else if (since > 0) {
+                    // A full listing has no use for removals.
+                    out.send(Frame.of(Protocol.ServerOp.ROOM_REMOVED, change.getValue()));
+                    sent++;
+                }
+                reached = change.getKey();
+            }
+            out.send(Frame.of(Protocol.ServerOp.END_OF_ROOM_LIST, reached, more ? 1 : 0));
+        }
+
+        private void createRoom(String roomName, String creatorName) {
+            if (!isValidRoomName(roomName)) {
+                out.send(Frame.of(Protocol.ServerOp.ERROR, "Error: Invalid room name."));
+                return;
+            }
+            if (roomRegistry.getByName(roomName) != null) {
+                out.send(Frame.of(Protocol.ServerOp.ERROR, "Error: Room name already exists."));
+                return;
+            }
+            String owner = cluster != null ? cluster.ownerOf(roomName) : null;
+            if (owner != null && !cluster.isLocal(owner)) {
+                // The owner answers with ROOM_ANNOUNCE or CREATE_FAILED, and
+                // the request's Done goes out with that answer.
+                PendingCreate pending = new PendingCreate(this, requestTag);
+                if (pendingCreates.putIfAbsent(roomName, pending) != null) {
+                    out.send(Frame.of(Protocol.ServerOp.ERROR, "Error: Room name already exists."));
+                    return;
+                }
+                requestTag = NO_TAG;
+                deferred = true;
+                if (!cluster.send(owner, Frame.of(Protocol.PeerOp.CREATE_ROOM, roomName, creatorName))
+                        && pendingCreates.remove(roomName, pending)) {
+                    pending.answer(Frame.of(Protocol.ServerOp.ERROR, "Error: Server for this room is unavailable."));
+                }
+                return;
+            }
+            try {
+                Room room = createOwnedRoom(roomName, creatorName);
+                if (room == null) {
+                    out.send(Frame.of(Protocol.ServerOp.ERROR, "Error: Room name already exists."));
+                    return;
+                }
+                out.send(roomFrame(Protocol.ServerOp.ROOM_CREATED, room));
+
+                eventLogger.log(EventLogger.Type.ROOM_CREATED, creatorName, null, roomName, null);
+                broadcastNewRoom(room, this);
+
+            } catch (IOException e) {
+                System.out.println("Could not create room " + roomName + ": " + e.getMessage());
+                out.send(Frame.of(Protocol.ServerOp.ERROR, "Error Creating Room: " + e.getMessage()));
+            }
+        }
+
+        private void joinRoom(String roomName) {
+            Room room = roomRegistry.getByName(roomName);
+            if (room == null) {
+                out.send(Frame.of(Protocol.ServerOp.ROOM_NOT_FOUND));
+                return;
+            }
+            if (currentRoom != room) {
+                leaveRoom();
+            }
+            // Under the room's lock, so an idle room can't be removed in between.
+            synchronized (room) {
+                if (room.removed) {
+                    out.sendWithoutBlocking(Frame.of(Protocol.ServerOp.ROOM_NOT_FOUND));
+                    return;
+                }
+                this.currentRoom = room;
+                out.sendWithoutBlocking(Frame.of(Protocol.ServerOp.JOINED_ROOM, room.getId(), room.getName()));
+                room.addSubscriber(this);
+            }
+            if (REPLAY_ON_JOIN > 0) {
+                replayHistory("last", REPLAY_ON_JOIN);
+            }
+            if (!roomName.equals(lastRoomByUser.put(userName, roomName)) && stateStore != null) {
+                stateStore.userJoined(userName, roomName);
+            }
+            eventLogger.log(EventLogger.Type.JOIN, userName, null, roomName, null);
+            broadcastSystemMessageToRoom("System - Người dùng '" + userName + "' đã vào phòng");
+        }
+
+        // Joins the room this user was last in. The room goes out first, so a
+        // client that has not listed the rooms yet knows what it is in.
+        private void rejoinRoom() {
+            String roomName = lastRoomByUser.get(userName);
+            Room room = roomName != null ? roomRegistry.getByName(roomName) : null;
+            if (room == null) {
+                out.send(Frame.of(Protocol.ServerOp.ROOM_NOT_FOUND));
+                return;
+            }
+            out.send(roomFrame(Protocol.ServerOp.ROOM, room));
+            joinRoom(roomName);
+        }
+
+        // Only an explicit LeaveRoom; a dropped connection keeps the room for Rejoin.
+        private void forgetLastRoom() {
+            if (userName != null && lastRoomByUser.remove(userName) != null && stateStore != null) {
+                stateStore.userLeft(userName);
+            }
+        }
+
+        private void leaveRoom() {
+            if (currentRoom != null) {
+                currentRoom.removeSubscriber(this);
+                multicastFrom = 0;
+                eventLogger.log(EventLogger.Type.LEAVE, userName, null, currentRoom.getName(), null);
+                broadcastSystemMessageToRoom("System - Người dùng '" + userName + "' đã rời phòng");
+                currentRoom = null;
+            }
+        }
+
+        // Lists every connection's outbound backlog, so lagging clients stand out.
+        private void sendClientQueues() {
+            for (ClientHandler clientHandler : clientHandlers) {
+                out.send(Frame.of(Protocol.ServerOp.CLIENT_QUEUE, String.valueOf(clientHandler.userName),
+                        clientHandler.out.getRemoteAddress(), clientHandler.out.getQueueDepth(),
+                        clientHandler.out.getDroppedCount()));
+            }
+            out.send(Frame.of(Protocol.ServerOp.END_OF_CLIENT_QUEUES));
+        }
+
+        private void enableMulticast() {
+            Room room = currentRoom;
+            if (multicastPublisher == null || room == null) {
+                out.send(Frame.of(Protocol.ServerOp.MULTICAST_UNAVAILABLE));
+                return;
+            }
+            // Messages are fanned out after they are numbered, so one numbered
+            // before this point still goes over TCP and none is skipped or sent twice.
+            long next;
+            synchronized (room.messageLock) {
+                next = room.getLastSequence() + 1;
+                multicastFrom = next;
+            }
+            out.send(Frame.of(Protocol.ServerOp.MULTICAST_ENABLED, room.getId(),
+                    room.getMulticastAddress().getHostAddress(), room.getPort(), next));
+        }
+
+        // Resends at most REPLAY_LIMIT messages from the start of the range; the
+        // client asks again for the rest. Only retained messages can be resent:
+        // anything older is reported as lost in one range, as is each gap.
+        private void resendMessages(int roomId, long fromSequence, long toSequence) {
+            Room room = roomRegistry.get(roomId);
+            if (room == null) {
+                out.send(Frame.of(Protocol.ServerOp.ROOM_NOT_FOUND));
+                return;
+            }
+            long from = Math.max(1, fromSequence);
+            long to = Math.min(toSequence, room.getLastSequence());
+            long oldest = room.getOldestRetainedSequence();
+            if (from < oldest && from <= to) {
+                out.send(Frame.of(Protocol.ServerOp.RESEND_UNAVAILABLE, roomId, from, Math.min(oldest - 1, to)));
+                from = oldest;
+            }
+            if (from > to) {
+                return;
+            }
+            long last = Math.min(to, from + REPLAY_LIMIT - 1);
+            long[] next = {from};
+            room.replayAfter(from - 1, (int) (last - from + 1), (sequence, timeMillis, text) -> {
+                if (sequence > last) {
+                    return;
+                }
+                if (sequence > next[0]) {
+                    out.send(Frame.of(Protocol.ServerOp.RESEND_UNAVAILABLE, roomId, next[0], sequence - 1));
+                }
+                out.send(Frame.of(Protocol.ServerOp.RESENT, roomId, sequence,
+                        Protocol.ServerOp.MESSAGE.keyword() + " " + text));
+                next[0] = sequence + 1;
+            });
+            if (next[0] <= last) {
+                out.send(Frame.of(Protocol.ServerOp.RESEND_UNAVAILABLE, roomId, next[0], last));
+            }
+        }
+
+        private void sendStats() {
+            metrics.writeStats((name, value) -> out.send(Frame.of(Protocol.ServerOp.STAT, name, value)));
+            out.send(Frame.of(Protocol.ServerOp.END_OF_STATS));
+        }
+
+        // Sends up to REPLAY_LIMIT stored messages of the current room, then EndOfHistory.
+        private void replayHistory(String mode, long value) {
+            Room room = currentRoom;
+            if (room == null) {
+                out.send(Frame.of(Protocol.ServerOp.ROOM_NOT_FOUND));
+                return;
+            }
+            MessageStore.RecordVisitor visitor = (sequence, timeMillis, text) ->
+                    out.send(Frame.of(Protocol.ServerOp.HISTORY, sequence, timeMillis, text));
+            long lastReplayed;
+            if (mode.equals("last")) {
+                lastReplayed = room.replayLast((int) Math.min(value, REPLAY_LIMIT), visitor);
+            } else if (mode.equals("after")) {
+                lastReplayed = room.replayAfter(value, REPLAY_LIMIT, visitor);
+            } else {
+                out.send(Frame.of(Protocol.ServerOp.UNKNOWN_COMMAND));
+                return;
+            }
+            out.send(Frame.of(Protocol.ServerOp.END_OF_HISTORY, lastReplayed, room.getLastSequence()));
+        }
+
+        // Whether the message, once prefixed with "From [address] - user: " (the
+        // longest prefix it gets), still fits in one binary frame along with the
+        // numbers sent next to it in Resent, History and peer frames.
+        private boolean fitsInFrame(String message) {
+            int budget = Protocol.MAX_FRAME_LENGTH - MESSAGE_FRAME_OVERHEAD
+                    - Protocol.utf8Length("From [" + out.getRemoteAddress() + "] - " + userName + ": ");
+            return message.length() <= budget / 3 || Protocol.utf8Length(message) <= budget;
+        }
+
+        private void broadcastMessageToRoom(String message) {
+            Room room = currentRoom;
+            if (room != null) {
+                String text = "[" + out.getRemoteAddress() + "] - " + userName + ": " + message;
+                if (room.isOwned()) {
+                    deliverRoomMessage(room, text);
+                } else {
+                    // The owner numbers it and relays it back to this node's members.
+                    cluster.send(room.ownerNode, Frame.of(Protocol.PeerOp.PUBLISH, room.getId(), 0, text));
+                }
+                eventLogger.log(EventLogger.Type.MESSAGE, userName, null, room.getName(), message);
+            }
+        }
+
+        private void sendPrivateMessage(String recipient, String message) {
+            if (recipient.equals(userName)) {
+                out.send(Frame.of(Protocol.ServerOp.ERROR, "Error: Cannot send private message to yourself."));
+                return;
+            }
+            ClientHandler clientHandler = usersByName.get(recipient);
+            String node = clientHandler == null ? remoteUsers.get(recipient) : null;
+            if (clientHandler == null && node == null) {
+                out.send(Frame.of(Protocol.ServerOp.USER_NOT_FOUND, recipient));
+                return;
+            }
+            Room room = currentRoom;
+            String text = "From [" + out.getRemoteAddress() + "] - " + userName + ": " + message;
+            if (clientHandler != null) {
+                clientHandler.out.send(Frame.of(Protocol.ServerOp.PRIVATE_MESSAGE, text));
+            } else if (!cluster.send(node, Frame.of(Protocol.PeerOp.PRIVATE_MESSAGE, recipient, text))) {
+                out.send(Frame.of(Protocol.ServerOp.USER_NOT_FOUND, recipient));
+                return;
+            }
+            this.out.send(Frame.of(Protocol.ServerOp.PRIVATE_MESSAGE,
+                    "To [" + out.getRemoteAddress() + "] - " + recipient + ": " + message));
+            metrics.recordPrivateMessage();
+            eventLogger.log(EventLogger.Type.PRIVATE_MESSAGE, userName, recipient, room != null ? room.getName() : "-", message);
+        }
+
+        private void broadcastSystemMessageToRoom(String message) {
+            Room room = currentRoom;
+            if (room != null) {
+                if (room.isOwned()) {
+                    deliverSystemMessage(room, message);
+                } else {
+                    cluster.send(room.ownerNode, Frame.of(Protocol.PeerOp.PUBLISH, room.getId(), 1, message));
+                }
+                eventLogger.log(EventLogger.Type.SYSTEM_MESSAGE, null, null, room.getName(), message);
+            }
+        }
+
+        // The reply switches this connection's output to binary once it is written;
+        // the decoder has already switched its input.
+        private void acceptProtocol(Frame request) {
+            String format = Protocol.BINARY.equals(request.getString(0)) ? Protocol.BINARY : "text";
+            knowsRoomRemoved |= Protocol.BINARY.equals(format);
+            out.send(Frame.of(Protocol.ServerOp.PROTOCOL_ACCEPTED, format));
+        }
+
+        // Output is compressed from right after the reply; requests never are.
+        private void acceptCompression(Frame request) {
+            String method = COMPRESSION && Protocol.DEFLATE.equals(request.getString(0)) ? Protocol.DEFLATE : "none";
+            out.send(Frame.of(Protocol.ServerOp.COMPRESSION_ACCEPTED, method));
+        }
+
+        // Room names travel as single tokens in the text protocol.
+        static boolean isValidRoomName(String roomName) {
+            if (roomName.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < roomName.length(); i++) {
+                if (Character.isWhitespace(roomName.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Rooms by id and by name, plus a change log ordered by version number: each
+    // live room appears under the version of its latest change and each removed
+    // room leaves a tombstone, so "what changed since version v" is a tail scan.
+    private static class RoomRegistry {
+        private static final int MAX_TOMBSTONES = 10_000;
+
+        private final Map<Integer, Room> byId = new ConcurrentHashMap<>();
+        private final Map<String, Room> byName = new ConcurrentHashMap<>();
+        // Version -> Room, or the Integer id of a removed room.
+        private final ConcurrentSkipListMap<Long, Object> changes = new ConcurrentSkipListMap<>();
+        private final ArrayDeque<Long> tombstones = new ArrayDeque<>();
+        private volatile long version;
+        // Tombstones at or below this version have been discarded.
+        private volatile long compactedVersion;
+
+        public Room get(int id) { return byId.get(id); }
+        public Room getByName(String name) { return byName.get(name); }
+        public Collection<Room> getRooms() { return byId.values(); }
+        public long getVersion() { return version; }
+        public long getCompactedVersion() { return compactedVersion; }
+
+        public NavigableMap<Long, Object> getChangesSince(long since) {
+            return changes.tailMap(since, false);
+        }
+
+        // Returns false if another room already has this name.
+        public synchronized boolean add(Room room) {
+            if (byName.putIfAbsent(room.getName(), room) != null) {
+                return false;
+            }
+            byId.put(room.getId(), room);
+            recordChange(room);
+            return true;
+        }
+
+        public synchronized void remove(Room room) {
+            if (!byId.remove(room.getId(), room)) {
+                return;
+            }
+            byName.remove(room.getName(), room);
+            changes.remove(room.version);
+            long removedAt = ++version;
+            changes.put(removedAt, room.getId());
+            tombstones.add(removedAt);
+            if (tombstones.size() > MAX_TOMBSTONES) {
+                long oldest = tombstones.poll();
+                changes.remove(oldest);
+                compactedVersion = oldest;
+            }
+        }
+
+        // After a restart: carry on from the version clients saw before it, and
+        // send a full listing to any client asking for changes since an older one.
+        public synchronized void restoreVersion(long restored) {
+            version = Math.max(version, restored);
+            compactedVersion = version;
+        }
+
+        // Moves the room to a new version so clients that are behind fetch it again.
+        public synchronized void recordChange(Room room) {
+            if (room.version != 0) {
+                changes.remove(room.version);
+            }
+            room.version = ++version;
+            changes.put(room.version, room);
+        }
+    }
+
+    private static class Room {
+        private static final int RECENT_MESSAGES = 1024;
+
+        private int id;
+        private String name;
+        private String creator;
+        private InetAddress multicastAddress;
+        private int port;
+        // Handlers currently in the room, so fan-out costs O(room size) rather than
+        // O(connected clients). Copy-on-write because joins and leaves are rare
+        // next to broadcasts, which then iterate a stable snapshot without locking.
+        private final Set<ClientHandler> subscribers = new CopyOnWriteArraySet<>();
+        // Chat messages are numbered per room. The most recent ones are kept in
+        // memory, indexed by sequence % RECENT_MESSAGES, so lost datagrams can be
+        // resent cheaply; all of them go to the room's history log, if enabled.
+        private final Object messageLock = new Object();
+        private volatile long lastSequence;
+        private final AtomicReferenceArray<SequencedMessage> recentMessages =
+                new AtomicReferenceArray<>(RECENT_MESSAGES);
+        private final MessageStore.RoomLog history;
+        // Member names as last sent to the room; guarded by the room's monitor.
+        // Member-list frames are queued under the monitor, which keeps each
+        // member's snapshot and deltas in order, so they are queued with
+        // sendWithoutBlocking: a member with a full queue is disconnected
+        // rather than holding up every join and leave in the room.
+        private final Set<String> announcedMembers = new LinkedHashSet<>();
+        private boolean memberUpdateScheduled;
+        // Version of the room's latest change; guarded by the registry.
+        private long version;
+        private final ServerMetrics.RateMeter messageRate = new ServerMetrics.RateMeter();
+        private final TokenBucket admissionBucket = admission.newRoomBucket();
+        // Owner only: the multicast group and port lent to the room.
+        private MulticastAddressPool.Lease lease;
+        // Last join, leave or message; the room is idle from then on while empty.
+        private volatile long lastActiveMillis = System.currentTimeMillis();
+        // Set under the room's monitor once the room is out of the registry.
+        private boolean removed;
+        // In a cluster: the node that owns the room, or null for this node. The
+        // owner numbers and stores the room's messages and merges its member
+        // list; other nodes only hold the room for their own members.
+        private final String ownerNode;
+        // Owner only: nodes with members in the room, and those nodes' members.
+        private final Set<String> interestedNodes = new CopyOnWriteArraySet<>();
+        private final Map<String, Set<String>> remoteMembers = new HashMap<>();
+        // Other nodes only: this node's members as last reported to the owner.
+        private final Set<String> reportedMembers = new HashSet<>();
+
+        public Room(int id, String name, String creator, InetAddress multicastAddress, int port,
+                    MessageStore.RoomLog history, String ownerNode) {
+            this.id = id;
+            this.name = name;
+            this.creator = creator;
+            this.multicastAddress = multicastAddress;
+            this.port = port;
+            this.history = history;
+            this.lastSequence = history != null ? history.lastSequence() : 0;
+            this.ownerNode = ownerNode;
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public String getCreator() { return creator; }
+        public InetAddress getMulticastAddress() { return multicastAddress; }
+        public int getPort() { return port; }
+        public Set<ClientHandler> getSubscribers() { return subscribers; }
+        public boolean isOwned() { return ownerNode == null; }
+
+        // Adds the handler and sends it the full member list. The snapshot is the
+        // list the other members were last sent (plus the newcomer), queued under
+        // the room lock, so the next delta applies to it exactly as it does for them.
+        public synchronized void addSubscriber(ClientHandler handler) {
+            lastActiveMillis = System.currentTimeMillis();
+            if (subscribers.isEmpty() && !isOwned()) {
+                startRelay();
+            }
+            subscribers.add(handler);
+            List<String> snapshot = new ArrayList<>(announcedMembers);
+            if (!announcedMembers.contains(handler.userName)) {
+                snapshot.add(handler.userName);
+            }
+            // A big room's list goes out as a USER_LIST followed by joined-only deltas.
+            List<Frame> frames = new ArrayList<>();
+            forEachMemberBatch(snapshot, List.of(), (joinedPart, leftPart) -> frames.add(frames.isEmpty()
+                    ? Frame.of(Protocol.ServerOp.USER_LIST, joinedPart)
+                    : Frame.of(Protocol.ServerOp.USER_LIST_DELTA, joinedPart, leftPart)));
+            for (Frame frame : frames) {
+                handler.out.sendWithoutBlocking(frame);
+            }
+            scheduleMemberUpdate();
+        }
+
+        public synchronized void removeSubscriber(ClientHandler handler) {
+            if (subscribers.remove(handler)) {
+                lastActiveMillis = System.currentTimeMillis();
+                if (subscribers.isEmpty() && !isOwned()) {
+                    cluster.send(ownerNode, Frame.of(Protocol.PeerOp.ROOM_INTEREST, id, 0));
+                }
+                scheduleMemberUpdate();
+            }
+        }
+
+        // Asks the owner to relay the room to this node. Members it announced
+        // earlier may have left meanwhile, so they are withdrawn from local
+        // members; the owner answers with the full list as one MEMBER_DELTA.
+        private synchronized void startRelay() {
+            Set<String> local = new HashSet<>();
+            for (ClientHandler subscriber : subscribers) {
+                local.add(subscriber.userName);
+            }
+            List<String> stale = new ArrayList<>();
+            for (String user : announcedMembers) {
+                if (!local.contains(user)) {
+                    stale.add(user);
+                }
+            }
+            if (!stale.isEmpty()) {
+                announcedMembers.removeAll(stale);
+                sendMemberDelta(List.of(), stale);
+            }
+            cluster.send(ownerNode, Frame.of(Protocol.PeerOp.ROOM_INTEREST, id, 1));
+        }
+
+        // Owner: another node's members joined or left, or the node went away.
+        public synchronized void updateRemoteMembers(String node, List<String> joined, List<String> left) {
+            Set<String> members = remoteMembers.computeIfAbsent(node, key -> new HashSet<>());
+            members.removeAll(left);
+            members.addAll(joined);
+            if (members.isEmpty()) {
+                remoteMembers.remove(node);
+            }
+            scheduleMemberUpdate();
+        }
+
+        // Owner: true if the room has been empty everywhere and quiet since
+        // before idleSince; it then counts as removed.
+        public synchronized boolean markRemovedIfIdle(long idleSince) {
+            if (removed || !subscribers.isEmpty() || !interestedNodes.isEmpty() || !remoteMembers.isEmpty()
+                    || lastActiveMillis > idleSince) {
+                return false;
+            }
+            removed = true;
+            return true;
+        }
+
+        public synchronized void markRemoved() {
+            removed = true;
+        }
+
+        public synchronized void dropNode(String node) {
+            interestedNodes.remove(node);
+            if (remoteMembers.remove(node) != null) {
+                scheduleMemberUpdate();
+            }
+        }
+
+        // Owner: starts or stops relaying to a node. A node that starts gets the
+        // current member list first, ahead of any later delta.
+        public synchronized void setInterest(String node, boolean interested) {
+            lastActiveMillis = System.currentTimeMillis();
+            if (!interested) {
+                interestedNodes.remove(node);
+            } else if (interestedNodes.add(node)) {
+                sendMemberChanges(node, Protocol.PeerOp.MEMBER_DELTA, id, new ArrayList<>(announcedMembers), List.of());
+            }
+        }
+
+        // Owner: the link to a node came back up; whatever was sent while it
+        // was down is lost, so the node gets the full list again.
+        public synchronized void resendMembers(String node) {
+            if (interestedNodes.contains(node)) {
+                sendMemberChanges(node, Protocol.PeerOp.MEMBER_DELTA, id, new ArrayList<>(announcedMembers), List.of());
+            }
+        }
+
+        // Other nodes: applies the owner's delta and passes on what is new here.
+        public synchronized void applyMemberDelta(List<String> joined, List<String> left) {
+            List<String> added = new ArrayList<>();
+            for (String user : joined) {
+                if (announcedMembers.add(user)) {
+                    added.add(user);
+                }
+            }
+            List<String> removed = new ArrayList<>();
+            for (String user : left) {
+                if (announcedMembers.remove(user)) {
+                    removed.add(user);
+                }
+            }
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            sendMemberDelta(added, removed);
+        }
+
+        // Other nodes: reports every local member again, after the link to the
+        // owner came back up.
+        public synchronized void resendToOwner() {
+            if (!subscribers.isEmpty()) {
+                reportedMembers.clear();
+                startRelay();
+                publishMemberUpdate();
+            }
+        }
+
+        private void scheduleMemberUpdate() {
+            if (MEMBER_UPDATE_DELAY_MS <= 0) {
+                publishMemberUpdate();
+            } else if (!memberUpdateScheduled) {
+                memberUpdateScheduled = true;
+                memberUpdateTimer.schedule(this::publishMemberUpdate, MEMBER_UPDATE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Sends every member the net joins and leaves since the last update, so a
+        // burst of N joins costs one batch per member instead of N full lists.
+        // In a cluster the owner merges every node's members into the room-wide
+        // list and relays the delta; other nodes report their own members to it.
+        private synchronized void publishMemberUpdate() {
+            memberUpdateScheduled = false;
+            Set<String> current = new LinkedHashSet<>();
+            for (ClientHandler subscriber : subscribers) {
+                current.add(subscriber.userName);
+            }
+            if (!isOwned()) {
+                reportMembers(current);
+                return;
+            }
+            for (Set<String> members : remoteMembers.values()) {
+                current.addAll(members);
+            }
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            diff(announcedMembers, current, joined, left);
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+            announcedMembers.removeAll(left);
+            announcedMembers.addAll(joined);
+
+            sendMemberDelta(joined, left);
+            for (String node : interestedNodes) {
+                sendMemberChanges(node, Protocol.PeerOp.MEMBER_DELTA, id, joined, left);
+            }
+            eventLogger.log(EventLogger.Type.USER_LIST, null, null, name, null);
+        }
+
+        private void reportMembers(Set<String> current) {
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            diff(reportedMembers, current, joined, left);
+            if (!joined.isEmpty() || !left.isEmpty()) {
+                reportedMembers.removeAll(left);
+                reportedMembers.addAll(joined);
+                sendMemberChanges(ownerNode, Protocol.PeerOp.MEMBER_REPORT, id, joined, left);
+            }
+        }
+
+        // Queues the change for every member, split to fit the frame size limit.
+        private void sendMemberDelta(List<String> joined, List<String> left) {
+            forEachMemberBatch(joined, left, (joinedPart, leftPart) -> {
+                Frame frame = broadcastFrame(subscribers.size(), Protocol.ServerOp.USER_LIST_DELTA, joinedPart, leftPart);
+                for (ClientHandler subscriber : subscribers) {
+                    subscriber.out.sendWithoutBlocking(frame);
+                }
+            });
+        }
+
+        private static void diff(Set<String> before, Set<String> after, List<String> joined, List<String> left) {
+            for (String user : after) {
+                if (!before.contains(user)) {
+                    joined.add(user);
+                }
+            }
+            for (String user : before) {
+                if (!after.contains(user)) {
+                    left.add(user);
+                }
+            }
+        }
+
+        public long getLastSequence() { return lastSequence; }
+
+        public long getOldestRetainedSequence() {
+            if (history == null) {
+                return Math.max(1, lastSequence - RECENT_MESSAGES + 1);
+            }
+            long first = history.firstSequence();
+            return first > 0 ? first : lastSequence + 1;
+        }
+
+        // Numbers the message and records it; appends are serialized so the
+        // history log stays in sequence order.
+        public long recordMessage(String text) {
+            synchronized (messageLock) {
+                long sequence = lastSequence + 1;
+                long timeMillis = System.currentTimeMillis();
+                recentMessages.set((int) (sequence % RECENT_MESSAGES), new SequencedMessage(sequence, timeMillis, text));
+                if (history != null) {
+                    try {
+                        history.append(sequence, timeMillis, text);
+                    } catch (IOException e) {
+                        System.out.println("History write failed for room " + id + ": " + e.getMessage());
+                    }
+                }
+                lastSequence = sequence;
+                lastActiveMillis = timeMillis;
+                messageRate.mark();
+                return sequence;
+            }
+        }
+
+        // Other nodes keep the owner's messages in the recent ring only.
+        public void recordRelayed(long sequence, String text) {
+            synchronized (messageLock) {
+                recentMessages.set((int) (sequence % RECENT_MESSAGES),
+                        new SequencedMessage(sequence, System.currentTimeMillis(), text));
+                lastSequence = Math.max(lastSequence, sequence);
+                messageRate.mark();
+            }
+        }
+
+        // Without a history log only the recent ring can be replayed.
+        public long replayAfter(long afterSequence, int limit, MessageStore.RecordVisitor visitor) {
+            if (history != null) {
+                return history.replayAfter(afterSequence, limit, visitor);
+            }
+            long replayed = afterSequence;
+            long to = Math.min(lastSequence, afterSequence + limit);
+            for (long sequence = Math.max(afterSequence + 1, getOldestRetainedSequence()); sequence <= to; sequence++) {
+                SequencedMessage entry = recentMessages.get((int) (sequence % RECENT_MESSAGES));
+                if (entry != null && entry.sequence == sequence) {
+                    visitor.visit(sequence, entry.timeMillis, entry.text);
+                    replayed = sequence;
+                }
+            }
+            return replayed;
+        }
+
+        public long replayLast(int count, MessageStore.RecordVisitor visitor) {
+            return replayAfter(Math.max(0, lastSequence - count), count, visitor);
+        }
+    }
+
+    // Most member names, and most bytes of names, in one USER_LIST,
+    // USER_LIST_DELTA, MEMBER_REPORT or MEMBER_DELTA, so a big room stays
+    // within the frame size limit.
+    private static final int MEMBER_BATCH = 256;
+    private static final int MEMBER_BATCH_BYTES = Protocol.MAX_FRAME_LENGTH / 2;
+
+    private static void sendMemberChanges(String node, Protocol.PeerOp op, int roomId,
+                                          List<String> joined, List<String> left) {
+        forEachMemberBatch(joined, left,
+                (joinedPart, leftPart) -> cluster.send(node, Frame.of(op, roomId, joinedPart, leftPart)));
+    }
+
+    // Splits a member change into batches, joined names first, and hands each
+    // to batch in order; an empty change is one empty batch.
+    private static void forEachMemberBatch(List<String> joined, List<String> left,
+                                           BiConsumer<List<String>, List<String>> batch) {
+        int j = 0;
+        int l = 0;
+        do {
+            int joinedEnd = j;
+            int leftEnd = l;
+            int bytes = 0;
+            while (joinedEnd - j + leftEnd - l < MEMBER_BATCH && (joinedEnd < joined.size() || leftEnd < left.size())) {
+                boolean fromJoined = joinedEnd < joined.size();
+                // Each name costs its bytes plus, at most, a 3-byte length.
+                bytes += Protocol.utf8Length(fromJoined ? joined.get(joinedEnd) : left.get(leftEnd)) + 3;
+                if (bytes > MEMBER_BATCH_BYTES && joinedEnd + leftEnd > j + l) {
+                    break;
+                }
+                if (fromJoined) {
+                    joinedEnd++;
+                } else {
+                    leftEnd++;
+                }
+            }
+            batch.accept(new ArrayList<>(joined.subList(j, joinedEnd)), new ArrayList<>(left.subList(l, leftEnd)));
+            j = joinedEnd;
+            l = leftEnd;
+        } while (j < joined.size() || l < left.size());
+    }
+
+    // A CreateRoom waiting for the owning node's answer, with the tag its Done carries.
+    private static final class PendingCreate {
+        private final ClientHandler creator;
+        private final long tag;
+
+        PendingCreate(ClientHandler creator, long tag) {
+            this.creator = creator;
+            this.tag = tag;
+        }
+
+        void answer(Frame reply) {
+            creator.out.send(reply);
+            creator.sendDone(tag);
+            creator.resume();
+        }
+    }
+
+    // Handles the frames other cluster nodes send this one; see Protocol.PeerOp.
+    private static class ClusterNode implements Cluster.Listener {
+        private final Map<Protocol.PeerOp, BiConsumer<String, Frame>> handlers =
+                new EnumMap<>(Protocol.PeerOp.class);
+
+        ClusterNode() {
+            handlers.put(Protocol.PeerOp.ROOM_ANNOUNCE, this::addRemoteRoom);
+            handlers.put(Protocol.PeerOp.CREATE_ROOM, this::createRoom);
+            handlers.put(Protocol.PeerOp.CREATE_FAILED, (node, frame) -> {
+                PendingCreate pending = pendingCreates.remove(frame.getString(0));
+                if (pending != null) {
+                    pending.answer(Frame.of(Protocol.ServerOp.ERROR, frame.getString(1)));
+                }
+            });
+            handlers.put(Protocol.PeerOp.USER_ONLINE, (node, frame) -> remoteUsers.put(frame.getString(0), node));
+            handlers.put(Protocol.PeerOp.USER_OFFLINE, (node, frame) -> remoteUsers.remove(frame.getString(0), node));
+            handlers.put(Protocol.PeerOp.PRIVATE_MESSAGE, (node, frame) -> {
+                ClientHandler recipient = usersByName.get(frame.getString(0));
+                if (recipient != null) {
+                    recipient.out.send(Frame.of(Protocol.ServerOp.PRIVATE_MESSAGE, frame.getString(1)));
+                    metrics.recordPrivateMessage();
+                }
+            });
+            handlers.put(Protocol.PeerOp.ROOM_INTEREST, (node, frame) -> {
+                Room room = ownedRoom(frame);
+                if (room != null) {
+                    room.setInterest(node, frame.getInt(1) != 0);
+                }
+            });
+            handlers.put(Protocol.PeerOp.PUBLISH, (node, frame) -> {
+                Room room = ownedRoom(frame);
+                if (room == null) {
+                    return;
+                }
+                if (frame.getInt(1) == 0) {
+                    deliverRoomMessage(room, frame.getString(2));
+                } else {
+                    deliverSystemMessage(room, frame.getString(2));
+                }
+            });
+            handlers.put(Protocol.PeerOp.MEMBER_REPORT, (node, frame) -> {
+                Room room = ownedRoom(frame);
+                if (room != null) {
+                    room.updateRemoteMembers(node, frame.getList(1), frame.getList(2));
+                }
+            });
+            handlers.put(Protocol.PeerOp.ROOM_MESSAGE, (node, frame) -> {
+                Room room = relayedRoom(node, frame);
+                if (room != null) {
+                    room.recordRelayed(frame.getLong(1), frame.getString(2));
+                    fanOutRoomMessage(room, frame.getLong(1), frame.getString(2));
+                }
+            });
+            handlers.put(Protocol.PeerOp.ROOM_SYSTEM, (node, frame) -> {
+                Room room = relayedRoom(node, frame);
+                if (room != null) {
+                    fanOutSystemMessage(room, frame.getString(1));
+                }
+            });
+            handlers.put(Protocol.PeerOp.ROOM_REMOVED, (node, frame) -> {
+                Room room = relayedRoom(node, frame);
+                if (room != null) {
+                    room.markRemoved();
+                    removeRoom(room);
+                }
+            });
+            handlers.put(Protocol.PeerOp.MEMBER_DELTA, (node, frame) -> {
+                Room room = relayedRoom(node, frame);
+                if (room != null) {
+                    room.applyMemberDelta(frame.getList(1), frame.getList(2));
+                }
+            });
+        }
+
+        // Re-sends everything the node learns from this one incrementally.
+        @Override
+        public void onPeerConnected(String node) {
+            for (Room room : roomRegistry.getRooms()) {
+                if (room.isOwned()) {
+                    cluster.send(node, roomFrame(Protocol.PeerOp.ROOM_ANNOUNCE, room));
+                    room.resendMembers(node);
+                } else if (room.ownerNode.equals(node)) {
+                    room.resendToOwner();
+                }
+            }
+            for (String user : usersByName.keySet()) {
+                cluster.send(node, Frame.of(Protocol.PeerOp.USER_ONLINE, user));
+            }
+        }
+
+        @Override
+        public void onPeerFrame(String node, Frame frame) {
+            BiConsumer<String, Frame> handler = frame != null ? handlers.get((Protocol.PeerOp) frame.op()) : null;
+            if (handler != null) {
+                handler.accept(node, frame);
+            }
+        }
+
+        // Forgets the node's users and members. Its rooms stay listed: they come
+        // back to life when it does, as long as it kept them.
+        @Override
+        public void onPeerLost(String node) {
+            remoteUsers.values().removeIf(node::equals);
+            for (Room room : roomRegistry.getRooms()) {
+                if (room.isOwned()) {
+                    room.dropNode(node);
+                }
+            }
+            for (Map.Entry<String, PendingCreate> pending : pendingCreates.entrySet()) {
+                if (cluster.ownerOf(pending.getKey()).equals(node) && pendingCreates.remove(pending.getKey(), pending.getValue())) {
+                    pending.getValue().answer(Frame.of(Protocol.ServerOp.ERROR, "Error: Server for this room is unavailable."));
+                }
+            }
+        }
+
+        private void addRemoteRoom(String node, Frame frame) {
+            int roomId = frame.getInt(0);
+            String roomName = frame.getString(1);
+            Room known = roomRegistry.get(roomId);
+            if (known != null && known.getName().equals(roomName)) {
+                return;
+            }
+            // The owner was restarted and reused the id or the name.
+            if (known != null) {
+                removeRoom(known);
+            }
+            Room sameName = roomRegistry.getByName(roomName);
+            if (sameName != null) {
+                removeRoom(sameName);
+            }
+            Room room;
+            try {
+                room = new Room(roomId, roomName, frame.getString(2), InetAddress.getByName(frame.getString(3)),
+                        frame.getInt(4), null, node);
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+                return;
+            }
+            roomRegistry.add(room);
+            PendingCreate pending = pendingCreates.remove(roomName);
+            if (pending != null) {
+                pending.answer(roomFrame(Protocol.ServerOp.ROOM_CREATED, room));
+                eventLogger.log(EventLogger.Type.ROOM_CREATED, room.getCreator(), null, roomName, null);
+            }
+            broadcastNewRoom(room, pending != null ? pending.creator : null);
+        }
+
+        private void createRoom(String node, Frame frame) {
+            String roomName = frame.getString(0);
+            String error = null;
+            try {
+                if (!ClientHandler.isValidRoomName(roomName)) {
+                    error = "Error: Invalid room name.";
+                } else {
+                    Room room = createOwnedRoom(roomName, frame.getString(1));
+                    if (room == null) {
+                        error = "Error: Room name already exists.";
+                    } else {
+                        broadcastNewRoom(room, null);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not create room " + roomName + ": " + e.getMessage());
+                error = "Error Creating Room: " + e.getMessage();
+            }
+            if (error != null) {
+                cluster.send(node, Frame.of(Protocol.PeerOp.CREATE_FAILED, roomName, error));
+            }
+        }
+
+        private static Room ownedRoom(Frame frame) {
+            Room room = roomRegistry.get(frame.getInt(0));
+            return room != null && room.isOwned() ? room : null;
+        }
+
+        private static Room relayedRoom(String node, Frame frame) {
+            Room room = roomRegistry.get(frame.getInt(0));
+            return room != null && node.equals(room.ownerNode) ? room : null;
+        }
+    }
+
+    // Per-room lines of the stats report, busiest rooms first.
+    private static class RoomStats implements ServerMetrics.RoomStatsSource {
+        @Override
+        public int roomCount() {
+            return roomRegistry.getRooms().size();
+        }
+
+        @Override
+        public void writeRoomStats(int limit, BiConsumer<String, String> out) {
+            List<Room> rooms = new ArrayList<>(roomRegistry.getRooms());
+            Map<Room, Double> rates = new HashMap<>();
+            for (Room room : rooms) {
+                rates.put(room, room.messageRate.rate());
+            }
+            rooms.sort(Comparator.comparingDouble((Room room) -> rates.get(room)).reversed());
+            for (Room room : rooms.subList(0, Math.min(limit, rooms.size()))) {
+                out.accept("room." + room.getName(), "id=" + room.getId()
+                        + " members=" + room.getSubscribers().size()
+                        + " messageRate=" + ServerMetrics.format(rates.get(room))
+                        + " messages=" + room.getLastSequence());
+            }
+        }
+    }
+
+    // What a state snapshot reads: the rooms this node owns and each user's last room.
+    private static class RoomState implements StateStore.Source {
+        @Override
+        public long registryVersion() {
+            return roomRegistry.getVersion();
+        }
+
+        @Override
+        public int roomIdCounter() {
+            return roomIdCounter.get();
+        }
+
+        @Override
+        public Collection<StateStore.RoomRecord> rooms() {
+            List<StateStore.RoomRecord> records = new ArrayList<>();
+            for (Room room : roomRegistry.getRooms()) {
+                if (room.isOwned() && room.lease != null) {
+                    records.add(new StateStore.RoomRecord(room.getId(), room.getName(), room.getCreator(),
+                            room.lease.getSlot()));
+                }
+            }
+            return records;
+        }
+
+        @Override
+        public Map<String, String> lastRooms() {
+            return lastRoomByUser;
+        }
+    }
+
+    private static class SequencedMessage {
+        private final long sequence;
+        private final long timeMillis;
+        private final String text;
+
+        SequencedMessage(long sequence, long timeMillis, String text) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package javachat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Multicast group and UDP port pairs for rooms. Slot k of the range is group
+// start+k with port basePort+k; slots are handed out in order, and released
+// ones go to the back of a free queue, so a recycled group has been quiet for
+// as long as possible before a new room takes it over.
+//
+// Cluster nodes split the range: node i of n only uses slots i, i+n, i+2n, ...
+public class MulticastAddressPool {
+    // A slot held by one room until it is released.
+    public static final class Lease {
+        private final int slot;
+        private final InetAddress group;
+        private final int port;
+
+        Lease(int slot, InetAddress group, int port) {
+            this.slot = slot;
+            this.group = group;
+            this.port = port;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public InetAddress getGroup() {
+            return group;
+        }
+
+        public int getPort() {
+            return port;
+        }
+    }
+
+    private final int start;
+    private final int basePort;
+    private final int stride;
+    private final int offset;
+    private final int capacity;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Queue<Integer> released = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    public MulticastAddressPool(String startGroup, int groupCount, int basePort, int stride, int offset)
+            throws UnknownHostException {
+        InetAddress first = InetAddress.getByName(startGroup);
+        if (first.getAddress().length != 4 || !first.isMulticastAddress()) {
+            throw new IllegalArgumentException(startGroup + " is not an IPv4 multicast address");
+        }
+        this.start = toInt(first.getAddress());
+        // Stay inside 224.0.0.0/4 and below the highest port.
+        long groups = Math.min(groupCount, 0xEFFFFFFFL - (start & 0xFFFFFFFFL) + 1);
+        long slots = Math.min(groups, 65536L - basePort);
+        if (slots <= 0) {
+            throw new IllegalArgumentException("Empty multicast range " + startGroup + " x " + groupCount
+                    + " from port " + basePort);
+        }
+        this.basePort = basePort;
+        this.stride = stride;
+        this.offset = offset;
+        this.capacity = (int) Math.max(0, (slots - offset + stride - 1) / stride);
+    }
+
+    // Null when every slot is taken.
+    public Lease acquire() {
+        Integer slot = released.poll();
+        if (slot == null) {
+            int index = next.getAndUpdate(value -> value < capacity ? value + 1 : value);
+            if (index == capacity) {
+                return null;
+            }
+            slot = index * stride + offset;
+        }
+        inUse.incrementAndGet();
+        return new Lease(slot, group(slot), basePort + slot);
+    }
+
+    // Takes back the slots of restored rooms; call before anything is acquired.
+    // Slots outside this node's share of the range, or already taken, come back
+    // null and their rooms need a fresh lease. Unused slots below the highest
+    // restored one are free again, oldest first.
+    public Lease[] restore(int[] slots) {
+        Lease[] leases = new Lease[slots.length];
+        BitSet taken = new BitSet();
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            int index = (slot - offset) / stride;
+            if (slot < offset || (slot - offset) % stride != 0 || index >= capacity || taken.get(index)) {
+                continue;
+            }
+            taken.set(index);
+            leases[i] = new Lease(slot, group(slot), basePort + slot);
+        }
+        int end = taken.length();
+        for (int index = taken.nextClearBit(0); index < end; index = taken.nextClearBit(index + 1)) {
+            released.add(index * stride + offset);
+        }
+        next.set(end);
+        inUse.set(taken.cardinality());
+        return leases;
+    }
+
+    public void release(Lease lease) {
+        inUse.decrementAndGet();
+        released.add(lease.slot);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    private InetAddress group(int slot) {
+        int address = start + slot;
+        try {
+            return InetAddress.getByAddress(new byte[] {
+                    (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+        } catch (UnknownHostException e) {
+            // Only thrown for a malformed length.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int toInt(byte[] address) {
+        return (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+    }
+}
@@ -0,0 +1,35 @@
+package javachat;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+// UDP data plane for room chat: each message is sent once to the room's
+// multicast group, however many members are listening. Datagrams carry
+// "<roomId> <sequence> <line>" so receivers can detect gaps and ask for a
+// resend over their TCP connection.
+public class MulticastPublisher {
+    private final MulticastSocket socket;
+
+    public MulticastPublisher(int timeToLive, String interfaceName) throws IOException {
+        socket = new MulticastSocket();
+        socket.setTimeToLive(timeToLive);
+        if (interfaceName != null) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+            if (networkInterface == null) {
+                throw new SocketException("Unknown network interface " + interfaceName);
+            }
+            socket.setNetworkInterface(networkInterface);
+        }
+    }
+
+    public void publish(InetAddress group, int port, int roomId, long sequence, String line) {
+        byte[] data = (roomId + " " + sequence + " " + line).getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(data, data.length, group, port));
+        } catch (IOException e) {
+            // Receivers recover the message through a Resend request.
+            System.out.println("Multicast send to " + group.getHostAddress() + ":" + port + " failed: " + e.getMessage());
+        }
+    }
+}
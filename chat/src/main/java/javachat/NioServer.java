@@ -0,0 +1,330 @@
+package javachat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Selector-based server: one acceptor plus a small pool of event loops, each
+// multiplexing many non-blocking connections that speak the chat protocol.
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+    // Compressed output is handed to the socket in chunks of about this size.
+    private static final int COMPRESSED_CHUNK = 16 * 1024;
+
+    public interface FrameHandler {
+        // Called with null for requests the decoder does not recognise.
+        void onFrame(Frame frame);
+
+        void onClose();
+    }
+
+    private final int port;
+    private final int backlog;
+    private final EventLoop[] loops;
+    private final Function<ClientConnection, FrameHandler> handlerFactory;
+    private final Supplier<OutboundQueue> queueFactory;
+    private final ServerMetrics metrics;
+
+    public NioServer(int port, int backlog, int loopCount, ServerMetrics metrics,
+                     Supplier<OutboundQueue> queueFactory, Function<ClientConnection, FrameHandler> handlerFactory) {
+        this.port = port;
+        this.backlog = backlog;
+        this.metrics = metrics;
+        this.queueFactory = queueFactory;
+        this.handlerFactory = handlerFactory;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this loop; reads are handled one at a time.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel, queueFactory.get(), metrics);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.handler = handlerFactory.apply(connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        // True on any loop thread, which must never wait on a client's queue:
+        // that would stall every connection it serves.
+        static boolean onAnyEventLoop() {
+            return Thread.currentThread() instanceof EventLoop;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class Connection implements ClientConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private final OutboundQueue outbound;
+        // Frames taken off the queue and partly written; touched only by the loop thread.
+        private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private SelectionKey key;
+        private FrameHandler handler;
+        private final FrameDecoder decoder = new FrameDecoder(Protocol.CLIENT_OPS);
+        private boolean binaryOutput;
+        private DeflateOutput deflateOutput;
+        private volatile long lastReadNanos = System.nanoTime();
+        // When bytes last reached the socket while output was waiting; 0 when none is.
+        private volatile long writeProgressNanos;
+        private final ServerMetrics metrics;
+
+        Connection(EventLoop loop, SocketChannel channel, OutboundQueue outbound,
+                   ServerMetrics metrics) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.outbound = outbound;
+            this.metrics = metrics;
+            this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        void read(ByteBuffer buffer) {
+            try {
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    close();
+                    return;
+                }
+                lastReadNanos = System.nanoTime();
+                buffer.flip();
+                decoder.feed(buffer, frame -> {
+                    if (!closed.get()) {
+                        handler.onFrame(frame);
+                    }
+                });
+            } catch (IOException e) {
+                // Broken socket, or an oversized or malformed frame.
+                close();
+            }
+        }
+
+        @Override
+        public void send(Frame frame) {
+            send(frame, !EventLoop.onAnyEventLoop());
+        }
+
+        @Override
+        public void sendWithoutBlocking(Frame frame) {
+            send(frame, false);
+        }
+
+        private void send(Frame frame, boolean mayBlock) {
+            if (closed.get()) {
+                return;
+            }
+            if (!outbound.offer(frame, mayBlock)) {
+                System.out.println("Disconnecting slow client " + remoteAddress + ": outbound queue full");
+                close();
+                return;
+            }
+            if (loop.inEventLoop()) {
+                flush();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        void flush() {
+            flushScheduled.set(false);
+            if (closed.get()) {
+                return;
+            }
+            try {
+                while (true) {
+                    Frame frame;
+                    while (inFlight.size() < MAX_GATHER && (frame = outbound.poll()) != null) {
+                        if (deflateOutput != null) {
+                            deflateOutput.write(frame, binaryOutput);
+                            if (deflateOutput.pending() >= COMPRESSED_CHUNK) {
+                                inFlight.add(deflateOutput.drain(false));
+                            }
+                        } else {
+                            inFlight.add(frame.view(binaryOutput));
+                        }
+                        // Everything queued after the protocol acknowledgement is binary,
+                        // and everything after the compression one is compressed.
+                        binaryOutput |= frame.switchesToBinary();
+                        if (frame.startsCompression() && deflateOutput == null) {
+                            deflateOutput = new DeflateOutput(metrics);
+                        }
+                    }
+                    if (deflateOutput != null) {
+                        ByteBuffer tail = deflateOutput.drain(true);
+                        if (tail.hasRemaining()) {
+                            inFlight.add(tail);
+                        }
+                    }
+                    if (inFlight.isEmpty()) {
+                        writeProgressNanos = 0;
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    // One gathering write for everything queued so far.
+                    int count = inFlight.size();
+                    long written = channel.write(inFlight.toArray(loop.gatherBuffers), 0, count);
+                    metrics.recordBytesWritten(written);
+                    if (written > 0 || writeProgressNanos == 0) {
+                        writeProgressNanos = System.nanoTime();
+                    }
+                    Arrays.fill(loop.gatherBuffers, 0, count, null);
+                    while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+                        inFlight.poll();
+                    }
+                    if (!inFlight.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return outbound.size() + inFlight.size();
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return outbound.getDroppedCount();
+        }
+
+        @Override
+        public long getLastReadNanos() {
+            return lastReadNanos;
+        }
+
+        @Override
+        public long getWriteStallNanos(long now) {
+            long progress = writeProgressNanos;
+            return progress == 0 ? 0 : now - progress;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void close() {
+            if (!loop.inEventLoop()) {
+                loop.execute(this::close);
+                return;
+            }
+            if (closed.compareAndSet(false, true)) {
+                if (key != null) {
+                    key.cancel();
+                }
+                closeQuietly(channel);
+                outbound.clear();
+                inFlight.clear();
+                if (deflateOutput != null) {
+                    deflateOutput.end();
+                }
+                if (handler != null) {
+                    handler.onClose();
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
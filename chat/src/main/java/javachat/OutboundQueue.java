@@ -0,0 +1,114 @@
+package javachat;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded queue of frames waiting to be written to one client, plus the
+// policy applied when that client stops keeping up.
+public class OutboundQueue {
+    public enum Policy {
+        DROP_OLDEST, DISCONNECT, BLOCK;
+
+        public static Policy parse(String name) {
+            switch (name.toLowerCase()) {
+                case "dropoldest":
+                case "drop_oldest":
+                    return DROP_OLDEST;
+                case "block":
+                    return BLOCK;
+                case "disconnect":
+                    return DISCONNECT;
+                default:
+                    throw new IllegalArgumentException("Unknown slow consumer policy: " + name);
+            }
+        }
+    }
+
+    // Linked rather than array-backed so idle connections do not pay for capacity up front.
+    private final BlockingQueue<Frame> queue;
+    private final Policy policy;
+    private final long blockTimeoutMillis;
+    private final AtomicLong dropped = new AtomicLong();
+    // Frames queued across every client's queue; shared, may be null.
+    private final LongAdder backlog;
+
+    public OutboundQueue(int capacity, Policy policy, long blockTimeoutMillis) {
+        this(capacity, policy, blockTimeoutMillis, null);
+    }
+
+    public OutboundQueue(int capacity, Policy policy, long blockTimeoutMillis, LongAdder backlog) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.backlog = backlog;
+    }
+
+    // Returns false when the client is too far behind and should be disconnected.
+    // Callers that must never block (event loops) pass mayBlock = false.
+    public boolean offer(Frame frame, boolean mayBlock) {
+        if (queue.offer(frame)) {
+            count(1);
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(frame)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                        count(-1);
+                    }
+                }
+                count(1);
+                return true;
+            case BLOCK:
+                if (mayBlock) {
+                    try {
+                        if (queue.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            count(1);
+                            return true;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    public Frame poll() {
+        Frame frame = queue.poll();
+        if (frame != null) {
+            count(-1);
+        }
+        return frame;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void clear() {
+        while (poll() != null) {
+            // Drained one by one so the shared backlog stays exact.
+        }
+    }
+
+    private void count(int delta) {
+        if (backlog != null) {
+            backlog.add(delta);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package javachat;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// Message catalogue shared by the server and the client, for both wire formats.
+//
+// Text (the original protocol): one line per message, "<Keyword> <field> ...",
+// where the last field takes the rest of the line.
+//
+// Binary (negotiated with "Protocol binary" / "ProtocolAccepted binary"):
+// <varint length><opcode byte><fields>, where a number is an unsigned varint,
+// a string is <varint byte length><UTF-8 bytes> and a list is <varint count>
+// followed by that many strings. Strings may contain spaces and newlines.
+//
+// Either format can be compressed from the server to the client (negotiated
+// with "Compress deflate" / "CompressionAccepted deflate"): every byte after
+// the acknowledgement is a raw deflate stream (RFC 1951, no zlib header),
+// sync-flushed whenever the server stops writing, so the client can always
+// decode everything it has received. Requests stay uncompressed.
+//
+// Each op has a schema with one letter per field: 'S' string, 'N' number,
+// 'L' string list. Fields after the first minFields are optional.
+public final class Protocol {
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    public static final String BINARY = "binary";
+    public static final String DEFLATE = "deflate";
+
+    private Protocol() {
+    }
+
+    public interface Op {
+        int code();
+
+        // Text keyword, or null for ops whose text form is just the first field.
+        String keyword();
+
+        String schema();
+
+        int minFields();
+
+        // True for the op that switches the sender's later messages to binary.
+        boolean switchesToBinary();
+    }
+
+    // Requests sent by clients.
+    public enum ClientOp implements Op {
+        // "GetRooms" lists every room; "GetRooms since <version>" pages through changes.
+        GET_ROOMS(0x01, "GetRooms", "SN", 0),
+        CREATE_ROOM(0x02, "CreateRoom", "SS", 2),
+        JOIN_ROOM(0x03, "JoinRoom", "SS", 2),
+        LEAVE_ROOM(0x04, "LeaveRoom", "", 0),
+        SEND_MESSAGE(0x05, "SendMessage", "SS", 2),
+        USE_MULTICAST(0x06, "UseMulticast", "", 0),
+        RESEND(0x07, "Resend", "NNN", 3),
+        CLIENT_QUEUES(0x08, "ClientQueues", "", 0),
+        PROTOCOL(0x09, "Protocol", "S", 1),
+        // "Replay last <count>" or "Replay after <sequence>" for the current room.
+        REPLAY(0x0A, "Replay", "SN", 2),
+        STATS(0x0B, "Stats", "", 0),
+        // "Compress deflate" asks for a compressed stream from the server.
+        COMPRESS(0x0C, "Compress", "S", 1),
+        // Heartbeats: "Ping <token>" is answered with "Pong <token>", in both directions.
+        PING(0x0D, "Ping", "N", 1),
+        PONG(0x0E, "Pong", "N", 1),
+        // "Tag <id>" labels the request that follows it; the server sends
+        // "Done <id>" once it has sent everything that request causes.
+        TAG(0x0F, "Tag", "N", 1),
+        // "Rejoin <userName>" claims the name and joins the room that user was
+        // last in, even across a server restart; the room comes first as "Room ...".
+        REJOIN(0x10, "Rejoin", "S", 1);
+
+        private final int code;
+        private final String keyword;
+        private final String schema;
+        private final int minFields;
+
+        ClientOp(int code, String keyword, String schema, int minFields) {
+            this.code = code;
+            this.keyword = keyword;
+            this.schema = schema;
+            this.minFields = minFields;
+        }
+
+        public int code() { return code; }
+        public String keyword() { return keyword; }
+        public String schema() { return schema; }
+        public int minFields() { return minFields; }
+        public boolean switchesToBinary() { return this == PROTOCOL; }
+    }
+
+    // Responses and pushed events sent by the server.
+    public enum ServerOp implements Op {
+        ROOM(0x41, "Room", "NSSSN", 5),
+        // Version reached and whether more changes follow; both omitted for a plain GetRooms.
+        END_OF_ROOM_LIST(0x42, "EndOfRoomList", "NN", 0),
+        ROOM_CREATED(0x43, "RoomCreated", "NSSSN", 5),
+        NEW_ROOM(0x44, "NewRoom", "NSSSN", 5),
+        JOINED_ROOM(0x45, "JoinedRoom", "NS", 2),
+        ROOM_NOT_FOUND(0x46, "RoomNotFound", "", 0),
+        MESSAGE(0x47, "Message", "S", 1),
+        PRIVATE_MESSAGE(0x48, "PrivateMessage", "S", 1),
+        SYSTEM(0x49, null, "S", 1),
+        // Binary form of the ClearUserList / User ... / EndOfUserList text block.
+        USER_LIST(0x4A, null, "L", 1),
+        CLEAR_USER_LIST(0x4B, "ClearUserList", "", 0),
+        USER(0x4C, "User", "S", 1),
+        END_OF_USER_LIST(0x4D, "EndOfUserList", "", 0),
+        USER_NOT_FOUND(0x4E, "UserNotFound", "S", 1),
+        USER_NAME_TAKEN(0x4F, "UserNameTaken", "S", 1),
+        ERROR(0x50, null, "S", 1),
+        UNKNOWN_COMMAND(0x51, "UnknownCommand", "", 0),
+        MULTICAST_ENABLED(0x52, "MulticastEnabled", "NSNN", 4),
+        MULTICAST_UNAVAILABLE(0x53, "MulticastUnavailable", "", 0),
+        RESENT(0x54, "Resent", "NNS", 3),
+        RESEND_UNAVAILABLE(0x55, "ResendUnavailable", "NNN", 3),
+        CLIENT_QUEUE(0x56, "ClientQueue", "SSNN", 4),
+        END_OF_CLIENT_QUEUES(0x57, "EndOfClientQueues", "", 0),
+        PROTOCOL_ACCEPTED(0x58, "ProtocolAccepted", "S", 1),
+        USER_JOINED(0x59, "UserJoined", "S", 1),
+        USER_LEFT(0x5A, "UserLeft", "S", 1),
+        // Binary form of a batch of UserJoined / UserLeft lines: joined, then left.
+        USER_LIST_DELTA(0x5B, null, "LL", 2),
+        HISTORY(0x5C, "History", "NNS", 3),
+        // Last sequence replayed, then the room's latest sequence.
+        END_OF_HISTORY(0x5D, "EndOfHistory", "NN", 2),
+        ROOM_REMOVED(0x5E, "RoomRemoved", "N", 1),
+        // The requested version is too old to diff against; drop the local list first.
+        ROOM_LIST_RESET(0x5F, "RoomListReset", "", 0),
+        // One metric of the Stats report: its name, then its value.
+        STAT(0x60, "Stat", "SS", 2),
+        END_OF_STATS(0x61, "EndOfStats", "", 0),
+        // The request was refused by admission control: which limit refused
+        // it (connection, user, room or backlog), then milliseconds to wait.
+        RATE_LIMITED(0x62, "RateLimited", "SN", 2),
+        // "deflate" when the server compresses from here on, "none" when it does not.
+        COMPRESSION_ACCEPTED(0x63, "CompressionAccepted", "S", 1),
+        PING(0x64, "Ping", "N", 1),
+        PONG(0x65, "Pong", "N", 1),
+        // Ends the replies to the request with this tag.
+        DONE(0x66, "Done", "N", 1);
+
+        private final int code;
+        private final String keyword;
+        private final String schema;
+        private final int minFields;
+
+        ServerOp(int code, String keyword, String schema, int minFields) {
+            this.code = code;
+            this.keyword = keyword;
+            this.schema = schema;
+            this.minFields = minFields;
+        }
+
+        public int code() { return code; }
+        public String keyword() { return keyword; }
+        public String schema() { return schema; }
+        public int minFields() { return minFields; }
+        public boolean switchesToBinary() { return this == PROTOCOL_ACCEPTED; }
+    }
+
+    // Messages between cluster nodes, always in binary frames. The sender of a
+    // link identifies itself with HELLO; room traffic flows from the node a
+    // client is on to the room's owner (CREATE_ROOM, PUBLISH, MEMBER_REPORT,
+    // ROOM_INTEREST) and from the owner to every node with members in the room
+    // (ROOM_MESSAGE, ROOM_SYSTEM, MEMBER_DELTA).
+    public enum PeerOp implements Op {
+        HELLO(0x81, "S"),
+        // A room owned by the sender: id, name, creator, group, port.
+        ROOM_ANNOUNCE(0x82, "NSSSN"),
+        // Name, creator; answered by ROOM_ANNOUNCE, or CREATE_FAILED with the error.
+        CREATE_ROOM(0x83, "SS"),
+        CREATE_FAILED(0x84, "SS"),
+        USER_ONLINE(0x85, "S"),
+        USER_OFFLINE(0x86, "S"),
+        // Recipient, then the text to deliver to them.
+        PRIVATE_MESSAGE(0x87, "SS"),
+        // Room id, then 1 when the sender has members in the room, 0 when it no longer has.
+        ROOM_INTEREST(0x88, "NN"),
+        // Room id, 0 for chat or 1 for a system message, text.
+        PUBLISH(0x89, "NNS"),
+        // Room id, sequence, text.
+        ROOM_MESSAGE(0x8A, "NNS"),
+        ROOM_SYSTEM(0x8B, "NS"),
+        // Room id, then the sender's members that joined and left since its last report.
+        MEMBER_REPORT(0x8C, "NLL"),
+        // Room id, then the room-wide joined and left members, as in USER_LIST_DELTA.
+        MEMBER_DELTA(0x8D, "NLL"),
+        // Room id of a room its owner removed.
+        ROOM_REMOVED(0x8E, "N");
+
+        private final int code;
+        private final String schema;
+
+        PeerOp(int code, String schema) {
+            this.code = code;
+            this.schema = schema;
+        }
+
+        public int code() { return code; }
+        public String keyword() { return null; }
+        public String schema() { return schema; }
+        public int minFields() { return schema.length(); }
+        public boolean switchesToBinary() { return false; }
+    }
+
+    // Lookup tables used by FrameDecoder: opcode -> op and text keyword -> op.
+    public static final class OpTable {
+        private final Op[] byCode = new Op[256];
+        private final Map<String, Op> byKeyword = new HashMap<>();
+
+        private OpTable(Op[] ops) {
+            for (Op op : ops) {
+                byCode[op.code()] = op;
+                if (op.keyword() != null) {
+                    byKeyword.put(op.keyword(), op);
+                }
+            }
+        }
+
+        public Op byCode(int code) {
+            return byCode[code & 0xFF];
+        }
+
+        public Op byKeyword(String keyword) {
+            return byKeyword.get(keyword);
+        }
+    }
+
+    public static final OpTable CLIENT_OPS = new OpTable(ClientOp.values());
+    public static final OpTable SERVER_OPS = new OpTable(ServerOp.values());
+    public static final OpTable PEER_OPS = new OpTable(PeerOp.values());
+
+    static {
+        // Server lines that are not "<Keyword> <fields>" are recognised by their first word.
+        SERVER_OPS.byKeyword.put("System", ServerOp.SYSTEM);
+        SERVER_OPS.byKeyword.put("Error", ServerOp.ERROR);
+        SERVER_OPS.byKeyword.put("Error:", ServerOp.ERROR);
+    }
+
+    public static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    // Encoded UTF-8 size of a string, without encoding it.
+    public static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,297 @@
+package javachat;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+// Server-wide counters and latency histograms. Recording is lock-free and
+// allocation-free, so it stays on in production; readers (the Stats command,
+// the HTTP endpoint and JMX) build their text on demand.
+public class ServerMetrics implements ServerMetricsMBean {
+    // Supplies per-room lines for the stats report, hottest first.
+    public interface RoomStatsSource {
+        int roomCount();
+
+        void writeRoomStats(int limit, BiConsumer<String, String> out);
+    }
+
+    private final Map<Protocol.ClientOp, LatencyHistogram> commandLatency = new EnumMap<>(Protocol.ClientOp.class);
+    private final LongAdder unknownCommands = new LongAdder();
+    private final LatencyHistogram fanOutLatency = new LatencyHistogram();
+    private final LongAdder fanOutRecipients = new LongAdder();
+    private final LongAdder roomMessages = new LongAdder();
+    private final LongAdder privateMessages = new LongAdder();
+    private final RateMeter messageRate = new RateMeter();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder compressionIn = new LongAdder();
+    private final LongAdder compressionOut = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder reapedConnections = new LongAdder();
+    private final RateMeter acceptRate = new RateMeter();
+    private final LongAdder snapshots = new LongAdder();
+    private volatile long lastSnapshotNanos;
+    private final Map<AdmissionControl.Scope, LongAdder> shed = new EnumMap<>(AdmissionControl.Scope.class);
+    private final IntSupplier activeConnections;
+    private final LongSupplier outboundBacklog;
+    private final RoomStatsSource rooms;
+    private final int hotRooms;
+    private final long startMillis = System.currentTimeMillis();
+
+    public ServerMetrics(IntSupplier activeConnections, LongSupplier outboundBacklog, RoomStatsSource rooms,
+                         int hotRooms) {
+        this.activeConnections = activeConnections;
+        this.outboundBacklog = outboundBacklog;
+        this.rooms = rooms;
+        this.hotRooms = hotRooms;
+        for (Protocol.ClientOp op : Protocol.ClientOp.values()) {
+            commandLatency.put(op, new LatencyHistogram());
+        }
+        for (AdmissionControl.Scope scope : AdmissionControl.Scope.values()) {
+            shed.put(scope, new LongAdder());
+        }
+    }
+
+    public void recordCommand(Protocol.ClientOp op, long nanos) {
+        commandLatency.get(op).record(nanos);
+    }
+
+    public void recordUnknownCommand() {
+        unknownCommands.increment();
+    }
+
+    // A room chat message written to recipients connections in nanos.
+    public void recordRoomMessage(int recipients, long nanos) {
+        roomMessages.increment();
+        messageRate.mark();
+        fanOutRecipients.add(recipients);
+        fanOutLatency.record(nanos);
+    }
+
+    public void recordPrivateMessage() {
+        privateMessages.increment();
+        messageRate.mark();
+    }
+
+    // A request refused by admission control.
+    public void recordShed(AdmissionControl.Scope scope) {
+        shed.get(scope).increment();
+    }
+
+    public void recordBytesWritten(long count) {
+        bytesWritten.add(count);
+    }
+
+    // Bytes given to a connection's deflater, what came out, and the time it took.
+    public void recordCompression(long in, long out, long nanos) {
+        compressionIn.add(in);
+        compressionOut.add(out);
+        compressionNanos.add(nanos);
+    }
+
+    // A connection closed for missing heartbeats or stalled output.
+    public void recordReaped() {
+        reapedConnections.increment();
+    }
+
+    // A state snapshot written to disk, and how long it took.
+    public void recordSnapshot(long nanos) {
+        snapshots.increment();
+        lastSnapshotNanos = nanos;
+    }
+
+    public void recordAccept() {
+        acceptedConnections.increment();
+        acceptRate.mark();
+    }
+
+    // Writes every metric as a name and a value; room lines come last.
+    public void writeStats(BiConsumer<String, String> out) {
+        out.accept("uptime.seconds", String.valueOf((System.currentTimeMillis() - startMillis) / 1000));
+        out.accept("connections.active", String.valueOf(getActiveConnections()));
+        out.accept("connections.accepted", String.valueOf(getAcceptedConnections()));
+        out.accept("connections.acceptRate", format(getAcceptRate()));
+        out.accept("connections.reaped", String.valueOf(getReapedConnections()));
+        out.accept("messages.room", String.valueOf(getRoomMessages()));
+        out.accept("messages.private", String.valueOf(getPrivateMessages()));
+        out.accept("messages.rate", format(getMessageRate()));
+        out.accept("fanout.recipients", String.valueOf(fanOutRecipients.sum()));
+        out.accept("fanout.latency", summary(fanOutLatency));
+        out.accept("bytes.written", String.valueOf(getBytesWritten()));
+        out.accept("compression.in", String.valueOf(compressionIn.sum()));
+        out.accept("compression.out", String.valueOf(compressionOut.sum()));
+        out.accept("compression.ratio", format(getCompressionRatio()));
+        out.accept("compression.cpuMillis", String.valueOf(TimeUnit.NANOSECONDS.toMillis(compressionNanos.sum())));
+        out.accept("outbound.backlog", String.valueOf(getOutboundBacklog()));
+        out.accept("state.snapshots", String.valueOf(getSnapshots()));
+        out.accept("state.snapshotMillis", String.valueOf(TimeUnit.NANOSECONDS.toMillis(lastSnapshotNanos)));
+        for (Map.Entry<AdmissionControl.Scope, LongAdder> scope : shed.entrySet()) {
+            out.accept("shed." + scope.getKey().keyword(), String.valueOf(scope.getValue().sum()));
+        }
+        for (Map.Entry<Protocol.ClientOp, LatencyHistogram> command : commandLatency.entrySet()) {
+            if (command.getValue().getCount() > 0) {
+                out.accept("command." + command.getKey().keyword(), summary(command.getValue()));
+            }
+        }
+        out.accept("command.unknown", String.valueOf(unknownCommands.sum()));
+        out.accept("rooms.count", String.valueOf(rooms.roomCount()));
+        rooms.writeRoomStats(hotRooms, out);
+    }
+
+    private static String summary(LatencyHistogram histogram) {
+        return "count=" + histogram.getCount()
+                + " p50us=" + micros(histogram.getPercentile(0.50))
+                + " p99us=" + micros(histogram.getPercentile(0.99))
+                + " p999us=" + micros(histogram.getPercentile(0.999))
+                + " maxus=" + micros(histogram.getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    static String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.getAsInt();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return reapedConnections.sum();
+    }
+
+    @Override
+    public double getAcceptRate() {
+        return acceptRate.rate();
+    }
+
+    @Override
+    public long getRoomMessages() {
+        return roomMessages.sum();
+    }
+
+    @Override
+    public long getPrivateMessages() {
+        return privateMessages.sum();
+    }
+
+    @Override
+    public double getMessageRate() {
+        return messageRate.rate();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long out = compressionOut.sum();
+        return out == 0 ? 0 : (double) compressionIn.sum() / out;
+    }
+
+    @Override
+    public long getOutboundBacklog() {
+        return outboundBacklog.getAsLong();
+    }
+
+    @Override
+    public long getShedRequests() {
+        long total = 0;
+        for (LongAdder count : shed.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSnapshots() {
+        return snapshots.sum();
+    }
+
+    @Override
+    public double getFanOutP99Micros() {
+        return fanOutLatency.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public int getRoomCount() {
+        return rooms.roomCount();
+    }
+
+    @Override
+    public String[] getCommandStats() {
+        List<String> lines = new ArrayList<>();
+        writeStats((name, value) -> {
+            if (name.startsWith("command.")) {
+                lines.add(name + " " + value);
+            }
+        });
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getHotRooms() {
+        List<String> lines = new ArrayList<>();
+        rooms.writeRoomStats(hotRooms, (name, value) -> lines.add(name + " " + value));
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getStats() {
+        List<String> lines = new ArrayList<>();
+        writeStats((name, value) -> lines.add(name + " " + value));
+        return lines.toArray(new String[0]);
+    }
+
+    // Events per second over the last WINDOW complete seconds, counted in
+    // per-second slots that are recycled as time moves on.
+    public static class RateMeter {
+        private static final int WINDOW = 10;
+        private static final int SLOTS = WINDOW + 2;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+        public void mark() {
+            long now = System.currentTimeMillis() / 1000;
+            int slot = (int) (now % SLOTS);
+            long owner = seconds.get(slot);
+            // The first event of a new second claims the slot and clears the
+            // count left from SLOTS seconds ago.
+            if (owner != now && seconds.compareAndSet(slot, owner, now)) {
+                counts.set(slot, 0);
+            }
+            counts.incrementAndGet(slot);
+        }
+
+        public double rate() {
+            long now = System.currentTimeMillis() / 1000;
+            long total = 0;
+            for (long second = now - WINDOW; second < now; second++) {
+                int slot = (int) (second % SLOTS);
+                if (seconds.get(slot) == second) {
+                    total += counts.get(slot);
+                }
+            }
+            return (double) total / WINDOW;
+        }
+    }
+}
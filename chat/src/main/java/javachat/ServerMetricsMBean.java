@@ -0,0 +1,47 @@
+package javachat;
+
+// JMX view of ServerMetrics, registered as javachat:type=ServerMetrics.
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    // Per second, averaged over the last few seconds.
+    double getAcceptRate();
+
+    // Connections closed as dead: no heartbeat reply, or output stalled.
+    long getReapedConnections();
+
+    long getRoomMessages();
+
+    long getPrivateMessages();
+
+    double getMessageRate();
+
+    long getBytesWritten();
+
+    // Uncompressed over compressed bytes for compressed connections; 0 before any.
+    double getCompressionRatio();
+
+    // Frames queued for all clients and not yet written.
+    long getOutboundBacklog();
+
+    // Requests refused by admission control, for any reason.
+    long getShedRequests();
+
+    // State snapshots written since startup.
+    long getSnapshots();
+
+    double getFanOutP99Micros();
+
+    int getRoomCount();
+
+    // One "command.<Keyword> count=... p50us=... ..." line per command.
+    String[] getCommandStats();
+
+    // The busiest rooms by message rate, one line each.
+    String[] getHotRooms();
+
+    // Everything the Stats command returns, one "name value" line each.
+    String[] getStats();
+}
@@ -0,0 +1,117 @@
+package javachat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Compares the server modes by starting MultiCastServer in a child JVM for
+// each one, opening a batch of idle connections and reporting how fast they
+// are served and how much resident memory and how many threads they cost.
+//
+// Usage: java -cp chat/target/classes javachat.ServerModeBenchmark [connections] [mode...]
+// -Dbench.java=<path to java> picks the server JVM (virtual mode needs 21+),
+// -Dbench.serverOpts="-Xmx512m ..." passes extra options to it.
+public class ServerModeBenchmark {
+    private static final int PORT = Integer.getInteger("bench.port", 12399);
+    private static final byte[] GET_ROOMS = "GetRooms\n".getBytes(StandardCharsets.UTF_8);
+    private static final String END_OF_ROOM_LIST = "EndOfRoomList\n";
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        List<String> modes = args.length > 1
+                ? Arrays.asList(args).subList(1, args.length)
+                : Arrays.asList("thread", "virtual", "nio");
+
+        System.out.printf("%-8s %8s %12s %14s %10s %9s%n",
+                "mode", "conns", "served/s", "RSS delta MB", "KB/conn", "threads");
+        for (String mode : modes) {
+            run(mode, connections);
+        }
+    }
+
+    private static void run(String mode, int connections) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("bench.java",
+                ProcessHandle.current().info().command().orElse("java")));
+        String serverOpts = System.getProperty("bench.serverOpts", "").trim();
+        if (!serverOpts.isEmpty()) {
+            command.addAll(Arrays.asList(serverOpts.split("\\s+")));
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                "-Dmulticast.port=" + PORT, "-Dmulticast.mode=" + mode, MultiCastServer.class.getName()));
+
+        Process server = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        List<SocketChannel> clients = new ArrayList<>(connections);
+        try {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", PORT);
+            waitForServer(address);
+            Thread.sleep(500);
+            long rssBefore = readStatus(server.pid(), "VmRSS:");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                clients.add(SocketChannel.open(address));
+            }
+            // A connection only counts once its handler has answered, not when
+            // it is merely sitting in the accept backlog.
+            ByteBuffer response = ByteBuffer.allocate(64);
+            for (SocketChannel client : clients) {
+                client.write(ByteBuffer.wrap(GET_ROOMS));
+                response.clear();
+                while (!new String(response.array(), 0, response.position(), StandardCharsets.UTF_8)
+                        .endsWith(END_OF_ROOM_LIST)) {
+                    if (client.read(response) < 0) {
+                        throw new IOException("Server closed a connection during the benchmark");
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Thread.sleep(1000);
+            long rssAfter = readStatus(server.pid(), "VmRSS:");
+            long threads = readStatus(server.pid(), "Threads:");
+            double deltaKb = rssAfter - rssBefore;
+            System.out.printf("%-8s %8d %12.0f %14.1f %10.1f %9d%n",
+                    mode, connections, connections / seconds, deltaKb / 1024, deltaKb / connections, threads);
+        } finally {
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void waitForServer(InetSocketAddress address) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                SocketChannel.open(address).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on " + address);
+    }
+
+    // Reads a numeric field (kB for memory fields) from /proc/<pid>/status; -1 off Linux.
+    private static long readStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux; fall through.
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,208 @@
+package javachat;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Blocking connection used by the thread and virtual-thread server modes.
+// Reads raw bytes into a small, growable FrameDecoder buffer instead of Reader
+// stacks (which hold ~8 KB of buffers each per connection). Writes never happen
+// on the caller's thread: frames go into a bounded OutboundQueue that a writer
+// task drains, batching whatever has queued up into one socket write, so a
+// slow receiver cannot stall the client that is broadcasting to it. After a
+// compression acknowledgement the batch goes through the connection's
+// DeflateOutput and is sync-flushed at the end of each drain.
+public class SocketConnection implements ClientConnection {
+    private static final int WRITE_BATCH_SIZE = 8 * 1024;
+    // Batch buffers are lent to drains while they run, so an idle connection
+    // holds none and a drain rarely allocates one; at most this many are kept
+    // between drains.
+    private static final int POOLED_BATCHES = 1024;
+    private static final BlockingQueue<byte[]> batchPool = new ArrayBlockingQueue<>(POOLED_BATCHES);
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final OutboundQueue outbound;
+    private final Executor writerExecutor;
+    private final AtomicBoolean writerScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final String remoteAddress;
+    private final ServerMetrics metrics;
+
+    private final FrameDecoder decoder = new FrameDecoder(Protocol.CLIENT_OPS);
+    private volatile long lastReadNanos = System.nanoTime();
+    // When the running drain last got bytes into the socket; 0 while none runs.
+    private volatile long writeProgressNanos;
+    // Only touched by the (single, serialized) drain task.
+    private boolean binaryOutput;
+    private DeflateOutput deflateOutput;
+
+    public SocketConnection(Socket socket, OutboundQueue outbound, Executor writerExecutor,
+                            ServerMetrics metrics) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+        this.outbound = outbound;
+        this.writerExecutor = writerExecutor;
+        this.remoteAddress = socket.getInetAddress().getHostAddress();
+        this.metrics = metrics;
+    }
+
+    // Blocks for the next read and hands every complete request to the sink;
+    // unrecognised requests arrive as null. Returns false at end of stream.
+    public boolean read(Consumer<Frame> sink) throws IOException {
+        boolean open = decoder.readFrom(in, sink);
+        lastReadNanos = System.nanoTime();
+        return open;
+    }
+
+    @Override
+    public void send(Frame frame) {
+        send(frame, true);
+    }
+
+    @Override
+    public void sendWithoutBlocking(Frame frame) {
+        send(frame, false);
+    }
+
+    private void send(Frame frame, boolean mayBlock) {
+        if (closed.get()) {
+            return;
+        }
+        if (!outbound.offer(frame, mayBlock)) {
+            System.out.println("Disconnecting slow client " + remoteAddress + ": outbound queue full");
+            close();
+            return;
+        }
+        if (writerScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::drain);
+        }
+    }
+
+    // Only one drain runs at a time per connection (guarded by writerScheduled).
+    private void drain() {
+        byte[] batch = batchPool.poll();
+        if (batch == null) {
+            batch = new byte[WRITE_BATCH_SIZE];
+        }
+        try {
+            do {
+                writeProgressNanos = System.nanoTime();
+                int length = 0;
+                Frame frame;
+                while ((frame = outbound.poll()) != null) {
+                    if (deflateOutput != null) {
+                        deflateOutput.write(frame, binaryOutput);
+                        if (deflateOutput.pending() >= WRITE_BATCH_SIZE) {
+                            length = write(batch, length);
+                            write(deflateOutput.drain(false));
+                        }
+                    } else {
+                        ByteBuffer bytes = frame.view(binaryOutput);
+                        while (bytes.hasRemaining()) {
+                            int count = Math.min(bytes.remaining(), batch.length - length);
+                            bytes.get(batch, length, count);
+                            length += count;
+                            if (length == batch.length) {
+                                length = write(batch, length);
+                            }
+                        }
+                    }
+                    // Everything queued after the protocol acknowledgement is binary,
+                    // and everything after the compression one is compressed.
+                    binaryOutput |= frame.switchesToBinary();
+                    if (frame.startsCompression() && deflateOutput == null) {
+                        deflateOutput = new DeflateOutput(metrics);
+                    }
+                }
+                write(batch, length);
+                if (deflateOutput != null) {
+                    write(deflateOutput.drain(true));
+                }
+                writeProgressNanos = 0;
+                writerScheduled.set(false);
+                // Re-check: a frame may have been queued after the last poll.
+            } while (!outbound.isEmpty() && writerScheduled.compareAndSet(false, true));
+        } catch (IOException e) {
+            // The reader side sees the broken socket and cleans up.
+            close();
+        } finally {
+            batchPool.offer(batch);
+        }
+        if (closed.get()) {
+            endCompression();
+        }
+    }
+
+    // Writes the batch and returns its new (empty) length.
+    private int write(byte[] batch, int length) throws IOException {
+        if (length > 0) {
+            out.write(batch, 0, length);
+            metrics.recordBytesWritten(length);
+            writeProgressNanos = System.nanoTime();
+        }
+        return 0;
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        write(bytes.array(), bytes.remaining());
+    }
+
+    // Only called while holding writerScheduled, so no drain is deflating.
+    private void endCompression() {
+        if (deflateOutput != null) {
+            deflateOutput.end();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
+    }
+
+    @Override
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    // A write blocked on a peer that stopped reading leaves the progress time behind.
+    @Override
+    public long getWriteStallNanos(long now) {
+        long progress = writeProgressNanos;
+        return progress == 0 ? 0 : now - progress;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Otherwise the running drain ends it when it sees the connection closed.
+        if (writerScheduled.compareAndSet(false, true)) {
+            endCompression();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package javachat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// Fast-restart state: the rooms this node owns with their multicast slots,
+// the room id counter, the room-list version and each user's last room, so a
+// restarted server comes back with the rooms it had.
+//
+//   <dir>/snapshot-<generation>.bin  the state as of the start of journal <generation>
+//   <dir>/journal-<generation>.log   changes since: [int length][int crc][type][fields]
+//
+// Every change is appended to the journal as it happens, one write and no
+// fsync, so a process crash loses nothing the kernel already has. A snapshot
+// switches to a new journal, then reads the live registry on its own thread;
+// no handler waits for it. Changes made while it runs may or may not be in it
+// and are in the new journal either way; replaying one the snapshot already
+// holds leaves the same state. Once the snapshot is on disk, older snapshots
+// and journals are deleted. Loading takes the newest intact snapshot and
+// replays the journals from its generation on, up to the first torn record.
+public class StateStore {
+    private static final int MAGIC = 0x43485331; // "CHS1"
+    private static final Pattern FILE_NAME = Pattern.compile("(snapshot|journal)-(\\d+)\\.(bin|log)");
+
+    private static final byte ROOM_ADDED = 1;
+    private static final byte ROOM_REMOVED = 2;
+    private static final byte USER_JOINED = 3;
+    private static final byte USER_LEFT = 4;
+
+    public static final class RoomRecord {
+        private final int id;
+        private final String name;
+        private final String creator;
+        private final int slot;
+
+        public RoomRecord(int id, String name, String creator, int slot) {
+            this.id = id;
+            this.name = name;
+            this.creator = creator;
+            this.slot = slot;
+        }
+
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public String getCreator() { return creator; }
+        // The room's MulticastAddressPool slot.
+        public int getSlot() { return slot; }
+    }
+
+    // What a snapshot reads from the running server.
+    public interface Source {
+        long registryVersion();
+
+        int roomIdCounter();
+
+        Collection<RoomRecord> rooms();
+
+        Map<String, String> lastRooms();
+    }
+
+    // The state found on disk.
+    public static final class State {
+        private final Map<Integer, RoomRecord> rooms = new TreeMap<>();
+        private final Map<String, String> lastRooms = new HashMap<>();
+        private long registryVersion;
+        private int roomIdCounter;
+        private int journalRecords;
+
+        public Collection<RoomRecord> getRooms() { return rooms.values(); }
+        public Map<String, String> getLastRooms() { return lastRooms; }
+        public long getRegistryVersion() { return registryVersion; }
+        public int getRoomIdCounter() { return roomIdCounter; }
+        public int getJournalRecords() { return journalRecords; }
+    }
+
+    private final Path directory;
+    // Guarded by this.
+    private FileChannel journal;
+    private long generation;
+    private boolean changed = true;
+
+    public StateStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    // Reads the state, then starts a new journal for the changes that follow.
+    public synchronized State load() throws IOException {
+        State state = new State();
+        TreeMap<Long, Path> snapshots = files("snapshot");
+        long from = 0;
+        for (Map.Entry<Long, Path> snapshot : snapshots.descendingMap().entrySet()) {
+            if (readSnapshot(snapshot.getValue(), state)) {
+                from = snapshot.getKey();
+                break;
+            }
+            System.out.println("Ignoring damaged state snapshot " + snapshot.getValue());
+        }
+        TreeMap<Long, Path> journals = files("journal");
+        for (Path path : journals.tailMap(from, true).values()) {
+            replay(path, state);
+        }
+        long last = Math.max(snapshots.isEmpty() ? 0 : snapshots.lastKey(), journals.isEmpty() ? 0 : journals.lastKey());
+        openJournal(last + 1);
+        return state;
+    }
+
+    public void roomAdded(RoomRecord room, long registryVersion) {
+        append(ROOM_ADDED, out -> {
+            out.writeLong(registryVersion);
+            writeRoom(out, room);
+        });
+    }
+
+    public void roomRemoved(int roomId, String roomName, long registryVersion) {
+        append(ROOM_REMOVED, out -> {
+            out.writeLong(registryVersion);
+            out.writeInt(roomId);
+            out.writeUTF(roomName);
+        });
+    }
+
+    public void userJoined(String userName, String roomName) {
+        append(USER_JOINED, out -> {
+            out.writeUTF(userName);
+            out.writeUTF(roomName);
+        });
+    }
+
+    public void userLeft(String userName) {
+        append(USER_LEFT, out -> out.writeUTF(userName));
+    }
+
+    // Writes a snapshot unless nothing changed since the last one; returns
+    // whether it did. Only one snapshot may run at a time.
+    public boolean snapshot(Source source) throws IOException {
+        long snapshotGeneration;
+        long registryVersion;
+        int roomIdCounter;
+        synchronized (this) {
+            if (!changed) {
+                return false;
+            }
+            changed = false;
+            snapshotGeneration = generation + 1;
+            openJournal(snapshotGeneration);
+            registryVersion = source.registryVersion();
+            roomIdCounter = source.roomIdCounter();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(registryVersion);
+        out.writeInt(roomIdCounter);
+        Collection<RoomRecord> rooms = source.rooms();
+        out.writeInt(rooms.size());
+        for (RoomRecord room : rooms) {
+            writeRoom(out, room);
+        }
+        Map<String, String> lastRooms = new HashMap<>(source.lastRooms());
+        out.writeInt(lastRooms.size());
+        for (Map.Entry<String, String> entry : lastRooms.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        Path target = directory.resolve("snapshot-" + snapshotGeneration + ".bin");
+        Path temp = directory.resolve("snapshot-" + snapshotGeneration + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (String kind : new String[] {"snapshot", "journal"}) {
+            for (Path old : files(kind).headMap(snapshotGeneration, false).values()) {
+                Files.deleteIfExists(old);
+            }
+        }
+        return true;
+    }
+
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private synchronized void append(byte type, RecordWriter writer) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeByte(type);
+            writer.write(out);
+            byte[] bytes = body.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+            record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            changed = true;
+        } catch (IOException e) {
+            System.out.println("Could not write to the state journal: " + e.getMessage());
+        }
+    }
+
+    private void openJournal(long newGeneration) throws IOException {
+        FileChannel next = FileChannel.open(directory.resolve("journal-" + newGeneration + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (journal != null) {
+            journal.close();
+        }
+        journal = next;
+        generation = newGeneration;
+    }
+
+    private boolean readSnapshot(Path path, State state) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < 4) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (in.readInt() != MAGIC) {
+            return false;
+        }
+        state.registryVersion = in.readLong();
+        state.roomIdCounter = in.readInt();
+        for (int i = in.readInt(); i > 0; i--) {
+            RoomRecord room = readRoom(in);
+            state.rooms.put(room.getId(), room);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            state.lastRooms.put(in.readUTF(), in.readUTF());
+        }
+        return true;
+    }
+
+    // Applies records up to the end of the file or the first torn or damaged one.
+    private void replay(Path path, State state) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (file.remaining() >= 8) {
+            int length = file.getInt();
+            int expected = file.getInt();
+            if (length <= 0 || length > file.remaining()) {
+                return;
+            }
+            byte[] bytes = new byte[length];
+            file.get(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != expected) {
+                return;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            switch (in.readByte()) {
+                case ROOM_ADDED: {
+                    state.registryVersion = Math.max(state.registryVersion, in.readLong());
+                    RoomRecord room = readRoom(in);
+                    state.rooms.put(room.getId(), room);
+                    break;
+                }
+                case ROOM_REMOVED: {
+                    state.registryVersion = Math.max(state.registryVersion, in.readLong());
+                    state.rooms.remove(in.readInt());
+                    String roomName = in.readUTF();
+                    state.lastRooms.values().removeIf(roomName::equals);
+                    break;
+                }
+                case USER_JOINED:
+                    state.lastRooms.put(in.readUTF(), in.readUTF());
+                    break;
+                case USER_LEFT:
+                    state.lastRooms.remove(in.readUTF());
+                    break;
+                default:
+                    return;
+            }
+            state.journalRecords++;
+        }
+    }
+
+    private static void writeRoom(DataOutputStream out, RoomRecord room) throws IOException {
+        out.writeInt(room.getId());
+        out.writeUTF(room.getName());
+        out.writeUTF(room.getCreator());
+        out.writeInt(room.getSlot());
+    }
+
+    private static RoomRecord readRoom(DataInputStream in) throws IOException {
+        return new RoomRecord(in.readInt(), in.readUTF(), in.readUTF(), in.readInt());
+    }
+
+    // Files of one kind by generation.
+    private TreeMap<Long, Path> files(String kind) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                Matcher matcher = FILE_NAME.matcher(entry.getFileName().toString());
+                if (matcher.matches() && matcher.group(1).equals(kind)) {
+                    files.put(Long.parseLong(matcher.group(2)), entry);
+                }
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,101 @@
+package javachat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timer wheel: one daemon thread advances a ring of buckets once per
+// tick and runs the timeouts that have fallen due, so scheduling costs a queue
+// insert and a hundred thousand connections need neither a thread nor a heap
+// entry each. Timeouts fire up to one tick late; tasks run on the wheel thread
+// and must be short.
+public class TimerWheel {
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long deadlineTick;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    // Only touched by the wheel thread.
+    private final List<List<Timeout>> buckets = new ArrayList<>();
+    private long tick;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+
+    // bucketCount is rounded up to a power of two.
+    public TimerWheel(String name, long tickMillis, int bucketCount) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, bucketCount - 1)) << 1;
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.mask = size - 1;
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long wait = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            transferAdded();
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (!timeout.cancelled) {
+                // Due in a tick already passed: run it with the current one.
+                timeout.deadlineTick = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos);
+                buckets.get((int) (timeout.deadlineTick & mask)).add(timeout);
+            }
+        }
+    }
+
+    // Runs what is due in this bucket; the rest wait for a later lap.
+    private void expire(List<Timeout> bucket) {
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled || timeout.deadlineTick <= tick) {
+                bucket.set(i, bucket.get(bucket.size() - 1));
+                bucket.remove(bucket.size() - 1);
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
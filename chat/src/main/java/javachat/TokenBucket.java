@@ -0,0 +1,40 @@
+package javachat;
+
+// Classic token bucket: holds up to burst tokens, refilled continuously at
+// ratePerSecond, and each admitted request takes one. Short bursts pass at
+// full speed while the long-run rate stays bounded.
+public class TokenBucket {
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    // Takes a token and returns 0, or returns how many milliseconds pass
+    // before one is available (at least 1).
+    public synchronized long tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / ratePerNano / 1_000_000));
+    }
+
+    // True once the bucket has refilled completely, i.e. it has been idle.
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= burst;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+        refilledAt = now;
+    }
+}
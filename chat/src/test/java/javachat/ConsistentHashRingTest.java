@@ -0,0 +1,57 @@
+package javachat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ConsistentHashRingTest {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void onlyTheLeavingNodesKeysMove() {
+        ConsistentHashRing before = new ConsistentHashRing(List.of("a", "b", "c", "d"));
+        ConsistentHashRing after = new ConsistentHashRing(List.of("a", "b", "d"));
+
+        Map<String, Integer> moved = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            String key = "room-" + i;
+            String owner = before.nodeFor(key);
+            if (owner.equals("c")) {
+                assertNotEquals("c", after.nodeFor(key));
+                moved.merge(after.nodeFor(key), 1, Integer::sum);
+            } else {
+                assertEquals(owner, after.nodeFor(key), key);
+            }
+        }
+        // The departed node's keys spread over the rest rather than landing on one.
+        assertEquals(3, moved.size(), moved.toString());
+    }
+
+    @Test
+    void spreadsKeysEvenly() {
+        List<String> nodes = List.of("a", "b", "c", "d");
+        ConsistentHashRing ring = new ConsistentHashRing(nodes);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.nodeFor("room-" + i), 1, Integer::sum);
+        }
+        for (String node : nodes) {
+            int share = owned.getOrDefault(node, 0);
+            assertTrue(share > KEYS / 4 / 2 && share < KEYS / 4 * 2, node + " owns " + share);
+        }
+    }
+
+    @Test
+    void doesNotDependOnNodeOrder() {
+        ConsistentHashRing one = new ConsistentHashRing(List.of("a", "b", "c"));
+        ConsistentHashRing other = new ConsistentHashRing(List.of("c", "a", "b"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(one.nodeFor("room-" + i), other.nodeFor("room-" + i));
+        }
+    }
+}
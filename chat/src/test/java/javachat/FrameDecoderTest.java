@@ -0,0 +1,144 @@
+package javachat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+    private final List<Frame> frames = new ArrayList<>();
+
+    @Test
+    void decodesTextRequests() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.CLIENT_OPS);
+        decoder.feed(Frame.of(Protocol.ClientOp.SEND_MESSAGE, "All", "hello there world").view(false), frames::add);
+        decoder.feed(ascii("Resend 3 10 20\r\n"), frames::add);
+
+        assertEquals(2, frames.size());
+        assertEquals(Protocol.ClientOp.SEND_MESSAGE, frames.get(0).op());
+        assertEquals("All", frames.get(0).getString(0));
+        // The last field takes the rest of the line.
+        assertEquals("hello there world", frames.get(0).getString(1));
+        assertEquals(3, frames.get(1).getInt(0));
+        assertEquals(20, frames.get(1).getLong(2));
+    }
+
+    @Test
+    void passesUnknownAndIncompleteRequestsAsNull() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.CLIENT_OPS);
+        decoder.feed(ascii("Dance now\nResend 1 x 3\nJoinRoom lobby\n"), frames::add);
+
+        assertEquals(3, frames.size());
+        frames.forEach(frame -> assertNull(frame));
+    }
+
+    @Test
+    void roundTripsBinaryFrames() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS, true);
+        Frame sent = Frame.of(Protocol.ServerOp.USER_LIST_DELTA, List.of("ann", "bob\nby"), List.of("carl"));
+        decoder.feed(sent.view(true), frames::add);
+        decoder.feed(Frame.of(Protocol.ServerOp.HISTORY, 7, 1_700_000_000_000L, "hi").view(true), frames::add);
+
+        assertEquals(2, frames.size());
+        assertEquals(List.of("ann", "bob\nby"), frames.get(0).getList(0));
+        assertEquals(List.of("carl"), frames.get(0).getList(1));
+        assertEquals(7, frames.get(1).getLong(0));
+        assertEquals(1_700_000_000_000L, frames.get(1).getLong(1));
+        assertEquals("hi", frames.get(1).getString(2));
+    }
+
+    @Test
+    void reassemblesFramesSplitAcrossReads() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS, true);
+        ByteBuffer bytes = Frame.of(Protocol.ServerOp.MESSAGE, "x".repeat(1000)).view(true);
+        while (bytes.hasRemaining()) {
+            ByteBuffer one = bytes.slice();
+            one.limit(1);
+            bytes.position(bytes.position() + 1);
+            assertTrue(frames.isEmpty());
+            decoder.feed(one, frames::add);
+        }
+
+        assertEquals(1, frames.size());
+        assertEquals("x".repeat(1000), frames.get(0).getString(0));
+    }
+
+    @Test
+    void switchesToBinaryWithinOneRead() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Protocol.CLIENT_OPS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes("Protocol binary\n".getBytes());
+        bytes.writeBytes(bytes(Frame.of(Protocol.ClientOp.JOIN_ROOM, "lobby", "ann").view(true)));
+        decoder.feed(ByteBuffer.wrap(bytes.toByteArray()), frames::add);
+
+        assertTrue(decoder.isBinary());
+        assertEquals(2, frames.size());
+        assertEquals("ann", frames.get(1).getString(1));
+    }
+
+    @Test
+    void rejectsOversizedFrames() {
+        FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS, true);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        Protocol.writeVarint(header, Protocol.MAX_FRAME_LENGTH + 1);
+        header.flip();
+
+        assertThrows(IOException.class, () -> decoder.feed(header, frames::add));
+    }
+
+    @Test
+    void rejectsOverlongTextLines() {
+        FrameDecoder decoder = new FrameDecoder(Protocol.CLIENT_OPS);
+
+        assertThrows(IOException.class,
+                () -> decoder.feed(ascii("SendMessage All " + "x".repeat(Protocol.MAX_FRAME_LENGTH + 100)), frames::add));
+    }
+
+    @Test
+    void rejectsStringLengthsPastTheFrameEnd() {
+        // Lengths of 2^31 and more used to turn negative when cast to int.
+        for (long length : new long[] {10, 1L << 31, 1L << 32, Long.MAX_VALUE}) {
+            FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS, true);
+            assertThrows(IOException.class,
+                    () -> decoder.feed(frame(Protocol.ServerOp.MESSAGE, length), frames::add), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsListCountsPastTheFrameEnd() {
+        for (long count : new long[] {5, 1L << 31, 1L << 32}) {
+            FrameDecoder decoder = new FrameDecoder(Protocol.SERVER_OPS, true);
+            assertThrows(IOException.class,
+                    () -> decoder.feed(frame(Protocol.ServerOp.USER_LIST, count), frames::add), "count " + count);
+        }
+    }
+
+    // A binary frame of the op followed by one varint.
+    private static ByteBuffer frame(Protocol.Op op, long value) {
+        ByteBuffer body = ByteBuffer.allocate(16);
+        body.put((byte) op.code());
+        Protocol.writeVarint(body, value);
+        body.flip();
+        ByteBuffer frame = ByteBuffer.allocate(24);
+        Protocol.writeVarint(frame, body.remaining());
+        frame.put(body).flip();
+        return frame;
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes());
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
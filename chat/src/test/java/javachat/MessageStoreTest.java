@@ -0,0 +1,116 @@
+package javachat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageStoreTest {
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final long HOUR_MS = 3_600_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoversUpToATornRecord() throws IOException {
+        MessageStore.RoomLog log = new MessageStore(directory, 64 * 1024, Long.MAX_VALUE, HOUR_MS).open(1);
+        long now = System.currentTimeMillis();
+        for (int sequence = 1; sequence <= 3; sequence++) {
+            log.append(sequence, now, "message " + sequence);
+        }
+        // A crash mid-append leaves the body of record 4 but not its length.
+        try (FileChannel file = FileChannel.open(onlySegment(1), StandardOpenOption.WRITE)) {
+            ByteBuffer body = ByteBuffer.allocate(16).putLong(4).putLong(now).flip();
+            file.write(body, 3 * (HEADER_SIZE + "message 1".length()) + 4);
+        }
+
+        MessageStore.RoomLog recovered = new MessageStore(directory, 64 * 1024, Long.MAX_VALUE, HOUR_MS).open(1);
+        assertEquals(3, recovered.lastSequence());
+        assertEquals(List.of("message 1", "message 2", "message 3"), replay(recovered, 0));
+
+        // The torn record is overwritten by the next append.
+        recovered.append(4, now, "message 4");
+        assertEquals("message 4", recovered.read(4));
+    }
+
+    @Test
+    void recoversUpToACorruptLength() throws IOException {
+        MessageStore.RoomLog log = new MessageStore(directory, 64 * 1024, Long.MAX_VALUE, HOUR_MS).open(1);
+        long now = System.currentTimeMillis();
+        for (int sequence = 1; sequence <= 3; sequence++) {
+            log.append(sequence, now, "message " + sequence);
+        }
+        try (FileChannel file = FileChannel.open(onlySegment(1), StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).flip(), HEADER_SIZE + "message 1".length());
+        }
+
+        MessageStore.RoomLog recovered = new MessageStore(directory, 64 * 1024, Long.MAX_VALUE, HOUR_MS).open(1);
+        assertEquals(1, recovered.lastSequence());
+        assertEquals(List.of("message 1"), replay(recovered, 0));
+    }
+
+    @Test
+    void dropsTheOldestSegmentsPastTheSizeLimit() throws IOException {
+        MessageStore.RoomLog log = new MessageStore(directory, 256, 1024, HOUR_MS).open(1);
+        long now = System.currentTimeMillis();
+        for (int sequence = 1; sequence <= 100; sequence++) {
+            log.append(sequence, now, "message " + sequence);
+        }
+
+        assertEquals(100, log.lastSequence());
+        long first = log.firstSequence();
+        assertTrue(first > 1, "first sequence " + first);
+        List<String> kept = replay(log, 0);
+        assertEquals(100 - first + 1, kept.size());
+        assertEquals("message " + first, kept.get(0));
+        assertEquals("message 100", kept.get(kept.size() - 1));
+    }
+
+    @Test
+    void dropsSegmentsPastTheAgeLimit() throws IOException {
+        MessageStore.RoomLog log = new MessageStore(directory, 256, Long.MAX_VALUE, HOUR_MS).open(1);
+        // Retention runs whenever a new segment is started, and always keeps the newest.
+        long old = System.currentTimeMillis() - 2 * HOUR_MS;
+        for (int sequence = 1; sequence <= 20; sequence++) {
+            log.append(sequence, old, "message " + sequence);
+        }
+        long first = log.firstSequence();
+        assertTrue(first > 1, "first sequence " + first);
+
+        long now = System.currentTimeMillis();
+        for (int sequence = 21; sequence <= 60; sequence++) {
+            log.append(sequence, now, "message " + sequence);
+        }
+        // Old messages survive only in the segment they share with new ones.
+        first = log.firstSequence();
+        assertTrue(first > 1 && first <= 21, "first sequence " + first);
+        List<String> kept = replay(log, 0);
+        assertEquals(60 - first + 1, kept.size());
+        assertEquals("message " + first, kept.get(0));
+    }
+
+    private Path onlySegment(int roomId) throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("room-" + roomId))) {
+            List<Path> logs = files.filter(path -> path.toString().endsWith(".log")).toList();
+            assertEquals(1, logs.size());
+            return logs.get(0);
+        }
+    }
+
+    private static List<String> replay(MessageStore.RoomLog log, long afterSequence) {
+        List<String> texts = new ArrayList<>();
+        log.replayAfter(afterSequence, Integer.MAX_VALUE, (sequence, time, text) -> texts.add(text));
+        return texts;
+    }
+}
@@ -0,0 +1,111 @@
+package javachat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StateStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysTheJournalOverTheSnapshot() throws IOException {
+        StateStore store = new StateStore(directory);
+        store.load();
+        StateStore.RoomRecord lobby = new StateStore.RoomRecord(1, "lobby", "ann", 0);
+        StateStore.RoomRecord games = new StateStore.RoomRecord(2, "games", "bob", 1);
+        store.roomAdded(lobby, 1);
+        store.roomAdded(games, 2);
+        store.userJoined("ann", "games");
+        assertTrue(store.snapshot(source(2, 2, List.of(lobby, games), Map.of("ann", "games"))));
+
+        store.roomRemoved(2, "games", 3);
+        store.userJoined("bob", "lobby");
+        store.roomAdded(new StateStore.RoomRecord(3, "music", "bob", 2), 4);
+        store.close();
+
+        StateStore.State state = new StateStore(directory).load();
+        assertEquals(List.of("lobby", "music"), names(state.getRooms()));
+        // Removing a room also forgets it as anyone's last room.
+        assertEquals(Map.of("bob", "lobby"), state.getLastRooms());
+        assertEquals(4, state.getRegistryVersion());
+        assertEquals(2, state.getRoomIdCounter());
+        assertEquals(3, state.getJournalRecords());
+    }
+
+    @Test
+    void skipsASnapshotWhenNothingChanged() throws IOException {
+        StateStore store = new StateStore(directory);
+        store.load();
+        store.userJoined("ann", "lobby");
+        assertTrue(store.snapshot(source(0, 0, List.of(), Map.of("ann", "lobby"))));
+        assertFalse(store.snapshot(source(0, 0, List.of(), Map.of("ann", "lobby"))));
+        store.close();
+    }
+
+    @Test
+    void stopsReplayingAtATornJournalTail() throws IOException {
+        StateStore store = new StateStore(directory);
+        store.load();
+        store.roomAdded(new StateStore.RoomRecord(1, "lobby", "ann", 0), 1);
+        store.userJoined("ann", "lobby");
+        store.close();
+        // A crash mid-write leaves a record header with only part of its body.
+        Path journal = directory.resolve("journal-1.log");
+        Files.write(journal, ByteBuffer.allocate(11).putInt(40).putInt(0x1234).put(new byte[3]).array(),
+                StandardOpenOption.APPEND);
+
+        store = new StateStore(directory);
+        StateStore.State state = store.load();
+        assertEquals(List.of("lobby"), names(state.getRooms()));
+        assertEquals(Map.of("ann", "lobby"), state.getLastRooms());
+        assertEquals(2, state.getJournalRecords());
+
+        // Later changes go to a new journal, so the torn one does not hide them.
+        store.userJoined("bob", "lobby");
+        store.close();
+        state = new StateStore(directory).load();
+        assertEquals(Map.of("ann", "lobby", "bob", "lobby"), state.getLastRooms());
+    }
+
+    @Test
+    void stopsReplayingAtADamagedRecord() throws IOException {
+        StateStore store = new StateStore(directory);
+        store.load();
+        store.userJoined("ann", "lobby");
+        store.userJoined("bob", "lobby");
+        store.close();
+        Path journal = directory.resolve("journal-1.log");
+        byte[] bytes = Files.readAllBytes(journal);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(journal, bytes);
+
+        StateStore.State state = new StateStore(directory).load();
+        assertEquals(Map.of("ann", "lobby"), state.getLastRooms());
+    }
+
+    private static List<String> names(Collection<StateStore.RoomRecord> rooms) {
+        return rooms.stream().map(StateStore.RoomRecord::getName).toList();
+    }
+
+    private static StateStore.Source source(long version, int counter, Collection<StateStore.RoomRecord> rooms,
+                                            Map<String, String> lastRooms) {
+        return new StateStore.Source() {
+            public long registryVersion() { return version; }
+            public int roomIdCounter() { return counter; }
+            public Collection<StateStore.RoomRecord> rooms() { return rooms; }
+            public Map<String, String> lastRooms() { return lastRooms; }
+        };
+    }
+}
@@ -0,0 +1,79 @@
+package javachat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    // Four 10 ms buckets: one lap of the wheel is 40 ms.
+    private final TimerWheel wheel = new TimerWheel("test-wheel", 10, 4);
+
+    @Test
+    void waitsOutDelaysLongerThanOneLap() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long[] elapsed = new long[1];
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            elapsed[0] = System.nanoTime() - start;
+            fired.countDown();
+        }, 150, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(150), "fired after " + elapsed[0] + " ns");
+    }
+
+    @Test
+    void keepsTimeoutsOfDifferentLapsInOneBucketApart() throws InterruptedException {
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch fired = new CountDownLatch(2);
+        // 10 ms and 50 ms land in the same bucket, one lap apart.
+        wheel.schedule(() -> {
+            order.add("late");
+            fired.countDown();
+        }, 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> {
+            order.add("early");
+            fired.countDown();
+        }, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("early", "late"), order);
+    }
+
+    @Test
+    void reschedulesFromWithinATaskAcrossLaps() throws InterruptedException {
+        int rounds = 6;
+        CountDownLatch fired = new CountDownLatch(rounds);
+        long start = System.nanoTime();
+        Runnable[] task = new Runnable[1];
+        task[0] = () -> {
+            fired.countDown();
+            if (fired.getCount() > 0) {
+                wheel.schedule(task[0], 25, TimeUnit.MILLISECONDS);
+            }
+        };
+        wheel.schedule(task[0], 25, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(25L * rounds), "took " + elapsed + " ns");
+    }
+
+    @Test
+    void skipsCancelledTimeouts() throws InterruptedException {
+        AtomicBoolean cancelledRan = new AtomicBoolean();
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(() -> cancelledRan.set(true), 20, TimeUnit.MILLISECONDS).cancel();
+        wheel.schedule(fired::countDown, 60, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertFalse(cancelledRan.get());
+    }
+}
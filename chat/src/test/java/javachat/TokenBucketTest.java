@@ -0,0 +1,46 @@
+package javachat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+    @Test
+    void admitsABurstThenReportsTheWait() {
+        TokenBucket bucket = new TokenBucket(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire());
+        }
+        long wait = bucket.tryAcquire();
+        // One token a second, so the next one is up to a second away.
+        assertTrue(wait >= 1 && wait <= 1000, "wait " + wait);
+        assertFalse(bucket.isFull());
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire());
+        }
+        assertTrue(bucket.tryAcquire() > 0);
+
+        Thread.sleep(50);
+        assertTrue(bucket.isFull());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire());
+        }
+    }
+
+    @Test
+    void neverHoldsMoreThanTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        // Long enough for three tokens at this rate.
+        Thread.sleep(300);
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+}